@@ -0,0 +1,58 @@
+#!/usr/bin/env bash
+# Runs the examples with the full vector, row sliced and pipelined CG from
+# the same initial points and checks that final stress and iteration
+# counts agree with the full vector CG.
+# Usage: cg_equivalence.sh <procs> [threads]
+# STRESS_TOL and ITER_TOL set the allowed relative differences.
+
+jar=damds-1.1-jar-with-dependencies.jar
+opts="-XX:+UseG1GC -Xms768m -Xmx1024m"
+procs=${1:-1}
+threads=${2:-1}
+stressTol=${STRESS_TOL:-0.001}
+iterTol=${ITER_TOL:-0.05}
+config=../examples/input/config.properties
+out=cg_equivalence
+mkdir -p $out
+
+n=`grep '^NumberDataPoints' $config | cut -d= -f2 | tr -d ' '`
+awk -v n=$n 'BEGIN { srand(1); for (i = 0; i < n; ++i) printf "%f\t%f\t%f\n", rand(), rand(), rand() }' > $out/init.txt
+
+run() {
+    name=$1
+    shift
+    grep -v '^\(InitialPointsFile\|PointsFile\|TimingFile\|SummaryFile\|IsRowSlicedCG\|IsPipelinedCG\|RecycledBasisSize\)\b' $config > $out/$name.properties
+    {
+        echo "InitialPointsFile = $out/init.txt"
+        echo "PointsFile = $out/$name-points.txt"
+        echo "TimingFile = $out/$name-timing.txt"
+        echo "SummaryFile = $out/$name-summary.txt"
+        for setting in "$@"; do echo "$setting"; done
+    } >> $out/$name.properties
+    $BUILD/bin/mpirun --mca btl ^tcp -np $procs --hostfile nodes.txt java $opts -cp ../target/$jar edu.indiana.soic.spidal.damds.Program -c $out/$name.properties -n $procs -t $threads > $out/$name.txt
+}
+
+value() {
+    grep "$2" $out/$1.txt | tail -1 | sed "s/.*$2[: \t]*\([-0-9.Ee+]*\).*/\1/"
+}
+
+run full
+run rowsliced "IsRowSlicedCG = true"
+run pipelined "IsPipelinedCG = true"
+
+status=0
+for name in rowsliced pipelined; do
+    for check in "Final Stress:$stressTol" "Total Iterations:$iterTol" "Total CG Iterations:$iterTol"; do
+        label=${check%:*}
+        tol=${check##*:}
+        a=`value full "$label"`
+        b=`value $name "$label"`
+        if awk -v a=$a -v b=$b -v t=$tol 'BEGIN { d = a - b; if (d < 0) d = -d; m = a < 0 ? -a : a; exit !(a != "" && b != "" && d <= t * m) }'; then
+            echo "$name $label: $b (full $a)"
+        else
+            echo "$name $label: $b differs from full $a beyond $tol"
+            status=1
+        fi
+    done
+done
+exit $status
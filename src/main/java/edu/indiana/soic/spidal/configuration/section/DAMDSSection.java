@@ -45,6 +45,45 @@ public class DAMDSSection {
             repetitions = Integer.parseInt(getProperty(p, "Repetitions", "1"));
             maxtemploops = Integer.parseInt(getProperty(p, "MaxTempLoops", "0"));
             isSimpleWeights = Boolean.parseBoolean(getProperty(p, "IsSimpleWeights", "false"));
+            isCompressed = Boolean.parseBoolean(getProperty(p, "IsCompressed", "false"));
+            vectorFile = getProperty(p, "VectorFile", null);
+            vectorDimension = Integer.parseInt(getProperty(p, "VectorDimension", "0"));
+            distanceMetric = getProperty(p, "DistanceMetric", "EUCLIDEAN").trim().toUpperCase();
+            isVectorTileCached = Boolean.parseBoolean(getProperty(p, "IsVectorTileCached", "false"));
+            isOutOfCore = Boolean.parseBoolean(getProperty(p, "IsOutOfCore", "false"));
+            scratchDirectory = getProperty(p, "ScratchDirectory", System.getProperty("java.io.tmpdir"));
+            outOfCoreBlockSize = Integer.parseInt(getProperty(p, "OutOfCoreBlockSize", "64"));
+            sparseDensityThreshold = Double.parseDouble(getProperty(p, "SparseDensityThreshold", "0.0"));
+            preconditioner = getProperty(p, "Preconditioner", "NONE").trim().toUpperCase();
+            recycledBasisSize = Integer.parseInt(getProperty(p, "RecycledBasisSize", "0"));
+            isPipelinedCG = Boolean.parseBoolean(getProperty(p, "IsPipelinedCG", "false"));
+            isRowSlicedCG = Boolean.parseBoolean(getProperty(p, "IsRowSlicedCG", "false"));
+            diagonalUpdateTemperature = Double.parseDouble(getProperty(p, "DiagonalUpdateTemperature", "0.0"));
+            acceleration = getProperty(p, "Acceleration", "NONE").trim().toUpperCase();
+            coolingTargetIterations = Integer.parseInt(getProperty(p, "CoolingTargetIterations", "0"));
+            timeLimitMinutes = Double.parseDouble(getProperty(p, "TimeLimitMinutes", "0.0"));
+            convergenceCriteria = getProperty(p, "ConvergenceCriteria", "ABSOLUTE");
+            relativeThreshold = Double.parseDouble(getProperty(p, "RelativeThreshold", "1e-6"));
+            stagnationWindow = Integer.parseInt(getProperty(p, "StagnationWindow", "20"));
+            maxTemperatureIterations = Integer.parseInt(getProperty(p, "MaxTemperatureIterations", "10000"));
+            minCGIterations = Integer.parseInt(getProperty(p, "MinCGIterations", "1"));
+            isTemperaturePruned = Boolean.parseBoolean(getProperty(p, "IsTemperaturePruned", "false"));
+            activeSetTolerance = Double.parseDouble(getProperty(p, "ActiveSetTolerance", "0.0"));
+            activeSetSweepInterval = Integer.parseInt(getProperty(p, "ActiveSetSweepInterval", "10"));
+            stressSamplesPerRow = Integer.parseInt(getProperty(p, "StressSamplesPerRow", "0"));
+            exactStressInterval = Integer.parseInt(getProperty(p, "ExactStressInterval", "10"));
+            multilevelSampleSize = Integer.parseInt(getProperty(p, "MultilevelSampleSize", "0"));
+            multilevelTemperature = Double.parseDouble(getProperty(p, "MultilevelTemperature", "0.1"));
+            interpolationDistanceFile = getProperty(p, "InterpolationDistanceFile", null);
+            interpolationPointCount = Integer.parseInt(getProperty(p, "InterpolationPointCount", "0"));
+            interpolationNeighbors = Integer.parseInt(getProperty(p, "InterpolationNeighbors", "0"));
+            interpolatedPointsFile = getProperty(p, "InterpolatedPointsFile", "interpolated-points.txt");
+            previousPointsFile = getProperty(p, "PreviousPointsFile", null);
+            incrementalTemperature = Double.parseDouble(getProperty(p, "IncrementalTemperature", "0.01"));
+            stochasticColumns = Integer.parseInt(getProperty(p, "StochasticColumns", "0"));
+            stochasticIterations = Integer.parseInt(getProperty(p, "StochasticIterations", "50"));
+            stochasticStepDecay = Double.parseDouble(getProperty(p, "StochasticStepDecay", "10.0"));
+            nearestNeighbors = Integer.parseInt(getProperty(p, "NearestNeighbors", "0"));
         } catch (IOException e) {
             throw new RuntimeException("IO exception occurred while reading configuration properties file", e);
         }
@@ -87,6 +126,47 @@ public class DAMDSSection {
     public String transformationFunction;
     public String weightTransformationFunction;
     public boolean isSimpleWeights;
+    public boolean isCompressed;
+
+    public String vectorFile;
+    public int vectorDimension;
+    public String distanceMetric;
+    public boolean isVectorTileCached;
+
+    public boolean isOutOfCore;
+    public String scratchDirectory;
+    public int outOfCoreBlockSize;
+    public double sparseDensityThreshold;
+    public String preconditioner;
+    public int recycledBasisSize;
+    public boolean isPipelinedCG;
+    public boolean isRowSlicedCG;
+    public double diagonalUpdateTemperature;
+    public String acceleration;
+    public int coolingTargetIterations;
+    public double timeLimitMinutes;
+    public String convergenceCriteria;
+    public double relativeThreshold;
+    public int stagnationWindow;
+    public int maxTemperatureIterations;
+    public int minCGIterations;
+    public boolean isTemperaturePruned;
+    public double activeSetTolerance;
+    public int activeSetSweepInterval;
+    public int stressSamplesPerRow;
+    public int exactStressInterval;
+    public int multilevelSampleSize;
+    public double multilevelTemperature;
+    public String interpolationDistanceFile;
+    public int interpolationPointCount;
+    public int interpolationNeighbors;
+    public String interpolatedPointsFile;
+    public String previousPointsFile;
+    public double incrementalTemperature;
+    public int stochasticColumns;
+    public int stochasticIterations;
+    public double stochasticStepDecay;
+    public int nearestNeighbors;
 
     public int repetitions;
     public int maxtemploops;
@@ -122,7 +202,46 @@ public class DAMDSSection {
                                        "Weight Transformation Function",
                                        "Repetitions",
                                        "Max Temp Loops",
-                                       "Is Simple Weights"};
+                                       "Is Simple Weights",
+                                       "Is Compressed (boolean)",
+                                       "Vector File",
+                                       "Vector Dimension",
+                                       "Distance Metric",
+                                       "Is Vector Tile Cached (boolean)",
+                                       "Is Out Of Core (boolean)",
+                                       "Scratch Directory",
+                                       "Out Of Core Block Size (MB)",
+                                       "Sparse Density Threshold",
+                                       "Preconditioner",
+                                       "Recycled Basis Size",
+                                       "Is Pipelined CG (boolean)",
+                                       "Is Row Sliced CG (boolean)",
+                                       "Diagonal Update Temperature",
+                                       "Acceleration",
+                                       "Cooling Target Iterations",
+                                       "Time Limit (minutes)",
+                                       "Convergence Criteria",
+                                       "Relative Threshold",
+                                       "Stagnation Window",
+                                       "Max Temperature Iterations",
+                                       "Min CG Iterations",
+                                       "Is Temperature Pruned (boolean)",
+                                       "Active Set Tolerance",
+                                       "Active Set Sweep Interval",
+                                       "Stress Samples Per Row",
+                                       "Exact Stress Interval",
+                                       "Multilevel Sample Size",
+                                       "Multilevel Temperature",
+                                       "Interpolation Distance File",
+                                       "Interpolation Point Count",
+                                       "Interpolation Neighbors",
+                                       "Interpolated Points File",
+                                       "Previous Points File",
+                                       "Incremental Temperature",
+                                       "Stochastic Columns",
+                                       "Stochastic Iterations",
+                                       "Stochastic Step Decay",
+                                       "Nearest Neighbors"};
         Object[] args =
             new Object[]{distanceMatrixFile,
                          weightMatrixFile,
@@ -145,7 +264,26 @@ public class DAMDSSection {
                          isMemoryMapped,
                          transformationFunction,
                          weightTransformationFunction,
-                         repetitions, maxtemploops, isSimpleWeights};
+                         repetitions, maxtemploops, isSimpleWeights,
+                         isCompressed, vectorFile, vectorDimension,
+                         distanceMetric, isVectorTileCached, isOutOfCore,
+                         scratchDirectory, outOfCoreBlockSize,
+                         sparseDensityThreshold, preconditioner,
+                         recycledBasisSize, isPipelinedCG, isRowSlicedCG,
+                         diagonalUpdateTemperature, acceleration,
+                         coolingTargetIterations, timeLimitMinutes,
+                         convergenceCriteria, relativeThreshold,
+                         stagnationWindow, maxTemperatureIterations,
+                         minCGIterations,
+                         isTemperaturePruned, activeSetTolerance,
+                         activeSetSweepInterval, stressSamplesPerRow,
+                         exactStressInterval, multilevelSampleSize,
+                         multilevelTemperature, interpolationDistanceFile,
+                         interpolationPointCount, interpolationNeighbors,
+                         interpolatedPointsFile, previousPointsFile,
+                         incrementalTemperature, stochasticColumns,
+                         stochasticIterations, stochasticStepDecay,
+                         nearestNeighbors};
 
         java.util.Optional<Integer> maxLength =
             Arrays.stream(params).map(String::length).reduce(Math::max);
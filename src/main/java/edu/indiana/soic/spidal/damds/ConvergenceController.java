@@ -0,0 +1,211 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.configuration.section.DAMDSSection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stops a temperature on the first of its criteria that is met and counts
+ * the stop reasons over the run. The criteria are named in
+ * <code>ConvergenceCriteria</code> as a comma separated list of ABSOLUTE,
+ * RELATIVE, STAGNATION, ITERATIONS and CG.
+ */
+public class ConvergenceController implements ConvergenceCriterion {
+    private final List<ConvergenceCriterion> criteria = new ArrayList<>();
+    private final Map<String, Integer> stopCounts = new TreeMap<>();
+
+    public ConvergenceController(DAMDSSection config) {
+        for (String name : config.convergenceCriteria.split(",")) {
+            switch (name.trim().toUpperCase()) {
+                case "ABSOLUTE":
+                    criteria.add(new AbsoluteChange(config.threshold));
+                    break;
+                case "RELATIVE":
+                    criteria.add(new RelativeChange(config.relativeThreshold));
+                    break;
+                case "STAGNATION":
+                    criteria.add(new Stagnation(config.stagnationWindow,
+                            config.relativeThreshold));
+                    break;
+                case "ITERATIONS":
+                    criteria.add(new IterationCap(
+                            config.maxTemperatureIterations));
+                    break;
+                case "CG":
+                    criteria.add(new CGCount(config.minCGIterations));
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new RuntimeException(
+                            "Unknown convergence criterion " + name);
+            }
+        }
+        if (criteria.isEmpty()) {
+            throw new RuntimeException("No convergence criteria given");
+        }
+    }
+
+    @Override
+    public void start(double stress) {
+        for (ConvergenceCriterion criterion : criteria) {
+            criterion.start(stress);
+        }
+    }
+
+    @Override
+    public String check(int iteration, double previousStress, double stress,
+                        int cgIterations) {
+        for (ConvergenceCriterion criterion : criteria) {
+            String reason = criterion.check(iteration, previousStress, stress,
+                    cgIterations);
+            if (reason != null) {
+                return reason;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Counts a stop of a temperature towards the run summary
+     */
+    public void recordStop(String reason) {
+        stopCounts.merge(reason, 1, Integer::sum);
+    }
+
+    public Map<String, Integer> getStopCounts() {
+        return stopCounts;
+    }
+
+    /**
+     * The original criterion, stress falling by less than a threshold
+     */
+    public static class AbsoluteChange implements ConvergenceCriterion {
+        private final double threshold;
+
+        public AbsoluteChange(double threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void start(double stress) {
+        }
+
+        @Override
+        public String check(int iteration, double previousStress,
+                            double stress, int cgIterations) {
+            return previousStress - stress < threshold ? "absolute" : null;
+        }
+    }
+
+    /**
+     * Stress falling by less than a fraction of itself, which unlike the
+     * absolute threshold doesn't depend on the scale of the distances
+     */
+    public static class RelativeChange implements ConvergenceCriterion {
+        private final double threshold;
+
+        public RelativeChange(double threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void start(double stress) {
+        }
+
+        @Override
+        public String check(int iteration, double previousStress,
+                            double stress, int cgIterations) {
+            return previousStress - stress < threshold * previousStress
+                    ? "relative"
+                    : null;
+        }
+    }
+
+    /**
+     * Stress falling by less than a fraction of itself over a window of
+     * iterations, which catches slow steady progress that never drops below
+     * a per iteration threshold
+     */
+    public static class Stagnation implements ConvergenceCriterion {
+        private final double threshold;
+        private final double[] window;
+        private int count;
+
+        public Stagnation(int window, double threshold) {
+            this.window = new double[Math.max(1, window)];
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void start(double stress) {
+            Arrays.fill(window, 0.0);
+            window[0] = stress;
+            count = 1;
+        }
+
+        @Override
+        public String check(int iteration, double previousStress,
+                            double stress, int cgIterations) {
+            // window holds the last stresses in a ring, so the entry
+            // about to be replaced is the one a full window ago
+            int slot = count % window.length;
+            double oldest = window[slot];
+            boolean isFull = count >= window.length;
+            window[slot] = stress;
+            ++count;
+            return isFull && oldest - stress < threshold * oldest
+                    ? "stagnation"
+                    : null;
+        }
+    }
+
+    /**
+     * A cap on the iterations of each temperature
+     */
+    public static class IterationCap implements ConvergenceCriterion {
+        private final int maxIterations;
+
+        public IterationCap(int maxIterations) {
+            this.maxIterations = maxIterations;
+        }
+
+        @Override
+        public void start(double stress) {
+        }
+
+        @Override
+        public String check(int iteration, double previousStress,
+                            double stress, int cgIterations) {
+            return iteration + 1 >= maxIterations ? "iterations" : null;
+        }
+    }
+
+    /**
+     * Stops when a CG solve starting from the previous points needs no more
+     * than a few iterations, as the points are then close to a fixed point
+     */
+    public static class CGCount implements ConvergenceCriterion {
+        private final int minIterations;
+
+        public CGCount(int minIterations) {
+            this.minIterations = minIterations;
+        }
+
+        @Override
+        public void start(double stress) {
+        }
+
+        @Override
+        public String check(int iteration, double previousStress,
+                            double stress, int cgIterations) {
+            return cgIterations >= 0 && cgIterations <= minIterations
+                    ? "cg"
+                    : null;
+        }
+    }
+}
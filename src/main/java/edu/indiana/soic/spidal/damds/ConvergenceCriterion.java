@@ -0,0 +1,27 @@
+package edu.indiana.soic.spidal.damds;
+
+/**
+ * Decides when the SMACOF iterations of a temperature stop
+ */
+public interface ConvergenceCriterion {
+    /**
+     * Called before the first iteration of each temperature
+     *
+     * @param stress stress at the start of the temperature
+     */
+    void start(double stress);
+
+    /**
+     * Called after each iteration
+     *
+     * @param iteration zero based iteration within the temperature
+     * @param previousStress stress before the iteration, or positive
+     *                       infinity if the iteration was discarded
+     * @param stress stress after the iteration
+     * @param cgIterations CG iterations of the iteration's solve, or -1 if
+     *                     it was not solved by CG
+     * @return the reason to stop, or null to continue
+     */
+    String check(int iteration, double previousStress, double stress,
+                 int cgIterations);
+}
@@ -0,0 +1,69 @@
+package edu.indiana.soic.spidal.damds;
+
+/**
+ * Chooses the factor the temperature is multiplied by after each
+ * temperature loop. With no target iteration count this is always the
+ * configured alpha. Otherwise the factor adapts to how the last
+ * temperature converged: it is squared, cooling twice as fast, when the
+ * loop took under half the target iterations or the stress barely moved,
+ * and its square root is taken, cooling half as fast, when the loop took
+ * over twice the target. Both are bounded to alpha^4 and alpha^(1/4).
+ */
+public class CoolingSchedule {
+    // Relative stress change below which a temperature is taken as settled
+    private static final double SETTLED_STRESS_CHANGE = 1e-3;
+
+    private final double minAlpha;
+    private final double maxAlpha;
+    private final int targetIterations;
+    private double alpha;
+
+    /**
+     * @param alpha the initial cooling factor
+     * @param targetIterations the iterations a temperature should take, or
+     *                         0 to keep the factor fixed
+     */
+    public CoolingSchedule(double alpha, int targetIterations) {
+        this.alpha = alpha;
+        this.targetIterations = targetIterations;
+        minAlpha = Math.pow(alpha, 4);
+        maxAlpha = Math.pow(alpha, 0.25);
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    /**
+     * Adapts the factor to the temperature loop that just finished
+     *
+     * @param iterations SMACOF iterations the loop took
+     * @param startStress stress at the start of the loop
+     * @param endStress stress at the end of the loop
+     * @return a description of the decision for the log
+     */
+    public String update(int iterations, double startStress,
+                         double endStress) {
+        if (targetIterations <= 0) {
+            return String.format("fixed alpha %.5g", alpha);
+        }
+
+        double change = startStress > 0
+                ? Math.abs(startStress - endStress) / startStress
+                : 0.0;
+        String decision;
+        if (iterations < targetIterations / 2.0 ||
+                change < SETTLED_STRESS_CHANGE) {
+            alpha = Math.max(alpha * alpha, minAlpha);
+            decision = "faster";
+        } else if (iterations > 2 * targetIterations) {
+            alpha = Math.min(Math.sqrt(alpha), maxAlpha);
+            decision = "slower";
+        } else {
+            decision = "same";
+        }
+        return String.format(
+                "%s alpha %.5g after %d iterations and stress change %.5g",
+                decision, alpha, iterations, change);
+    }
+}
@@ -0,0 +1,116 @@
+package edu.indiana.soic.spidal.damds;
+
+/**
+ * Fits the remaining temperatures into a wall clock budget. After each
+ * temperature loop it estimates the time of the temperatures still left,
+ * from the measured time per SMACOF iteration and iterations per
+ * temperature. When they don't fit, it cools faster so that fewer
+ * temperatures remain, caps the iterations of each temperature to the
+ * time left, and when not even two temperatures fit goes straight to the
+ * final zero temperature with a reduced CG limit. A share of the budget
+ * is kept back for the final stress and writing the points.
+ */
+public class DeadlineSchedule {
+    // Share of the budget kept for the work after the temperature loops
+    private static final double RESERVE_FRACTION = 0.05;
+    // Relative distance below tMin the compressed schedule aims at
+    private static final double TMIN_MARGIN = 1e-6;
+
+    private final double budgetMillis;
+    private final double tMin;
+    private final int cgIter;
+
+    private double alpha;
+    private boolean isFinalTemperature;
+    private int iterationCap = Integer.MAX_VALUE;
+    private int cgIterLimit;
+
+    /**
+     * @param minutes the wall clock budget from the start of the run, or 0
+     *                for none
+     * @param tMin the temperature below which the final zero temperature
+     *             follows
+     * @param cgIter the configured CG iteration limit
+     */
+    public DeadlineSchedule(double minutes, double tMin, int cgIter) {
+        budgetMillis = minutes * 60_000.0 * (1.0 - RESERVE_FRACTION);
+        this.tMin = tMin;
+        this.cgIter = cgIter;
+        cgIterLimit = cgIter;
+    }
+
+    public boolean isSet() {
+        return budgetMillis > 0;
+    }
+
+    /**
+     * Plans the temperatures after the one that just finished
+     *
+     * @param elapsedMillis time since the start of the run
+     * @param iterationMillis average time of a SMACOF iteration
+     * @param iterationsPerTemperature average iterations of a temperature
+     * @param tCur the temperature that just finished
+     * @param alpha the cooling factor the schedule would use
+     * @return a description of the plan for the log
+     */
+    public String plan(double elapsedMillis, double iterationMillis,
+                       double iterationsPerTemperature, double tCur,
+                       double alpha) {
+        this.alpha = alpha;
+        isFinalTemperature = false;
+        iterationCap = Integer.MAX_VALUE;
+        cgIterLimit = cgIter;
+
+        double remainingMillis = budgetMillis - elapsedMillis;
+        double temperatureMillis = iterationsPerTemperature * iterationMillis;
+        // Temperatures left with this factor, counting the final zero one
+        double next = tCur * alpha;
+        int remaining = next < tMin
+                ? 1
+                : (int) Math.floor(Math.log(tMin / next) / Math.log(alpha))
+                + 2;
+        double ratio = remainingMillis / (remaining * temperatureMillis);
+        if (ratio >= 1.0) {
+            return String.format(
+                    "%d temperatures fit in %.0f ms left", remaining,
+                    remainingMillis);
+        }
+
+        int allowed = Math.max(1, (int) Math.floor(remaining * ratio));
+        if (allowed >= 2) {
+            // allowed - 1 temperatures above tMin, then a step that lands
+            // just below it, which run() replaces by the zero temperature.
+            // Aiming exactly at tMin could round to either side.
+            this.alpha = Math.min(alpha, Math.pow(
+                    tMin * (1.0 - TMIN_MARGIN) / tCur, 1.0 / allowed));
+        } else {
+            isFinalTemperature = true;
+            cgIterLimit = Math.max(1, (int) (cgIter * Math.max(ratio, 0.0)));
+        }
+        iterationCap = Math.max(1, (int) (Math.max(remainingMillis, 0.0) /
+                (allowed * iterationMillis)));
+        return String.format(
+                "%d temperatures don't fit in %.0f ms left, cooling by %.5g" +
+                        " to %s with at most %d iterations and %d CG " +
+                        "iterations",
+                remaining, remainingMillis, this.alpha,
+                isFinalTemperature ? "zero" : allowed + " temperatures",
+                iterationCap, cgIterLimit);
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public boolean isFinalTemperature() {
+        return isFinalTemperature;
+    }
+
+    public int getIterationCap() {
+        return iterationCap;
+    }
+
+    public int getCgIterLimit() {
+        return cgIterLimit;
+    }
+}
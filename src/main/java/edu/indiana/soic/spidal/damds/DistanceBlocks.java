@@ -0,0 +1,149 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.Range;
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+/**
+ * A thread's rows of the distance matrix presented as consecutive row
+ * blocks. Kernels visit the blocks in order and index a block's values as
+ * <code>(threadLocalRow - blockStartRow) * globalColCount + globalCol</code>.
+ * The returned array is only valid until the next block is requested.
+ */
+public abstract class DistanceBlocks {
+    /**
+     * Creates weights over a block's rows
+     */
+    public interface WeightsFactory {
+        /**
+         * @param weights block weights, or null if there is no weight matrix
+         * @param distances block distances
+         * @param rows global rows of the block
+         * @return weights indexed by the row within the block
+         */
+        WeightsWrap1D create(short[] weights, short[] distances, Range rows);
+    }
+
+    protected final int rowCount;
+    protected final int globalColCount;
+    protected final int rowsPerBlock;
+    // Null when the weights of all thread rows apply to every block
+    protected final WeightsFactory weightsFactory;
+
+    private double avgDistForSammon = -1.0;
+
+    protected DistanceBlocks(int rowCount, int globalColCount,
+                             int rowsPerBlock) {
+        this(rowCount, globalColCount, rowsPerBlock, null);
+    }
+
+    protected DistanceBlocks(int rowCount, int globalColCount,
+                             int rowsPerBlock, WeightsFactory weightsFactory) {
+        this.rowCount = rowCount;
+        this.globalColCount = globalColCount;
+        this.rowsPerBlock = Math.max(1, rowsPerBlock);
+        this.weightsFactory = weightsFactory;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getBlockCount() {
+        return (rowCount + rowsPerBlock - 1) / rowsPerBlock;
+    }
+
+    public int getBlockStartRow(int block) {
+        return block * rowsPerBlock;
+    }
+
+    public int getBlockRowCount(int block) {
+        return Math.min(rowsPerBlock, rowCount - block * rowsPerBlock);
+    }
+
+    /**
+     * Distances of the given block scaled by <code>Short.MAX_VALUE</code>,
+     * where negative values denote missing distances.
+     *
+     * @param block the block index
+     * @return row major distances of the block
+     */
+    public abstract short[] getDistances(int block);
+
+    /**
+     * Raises non negative distances below <code>positiveMin</code> to it.
+     *
+     * @param positiveMin the smallest positive distance
+     */
+    public abstract void changeZeroDistancesToPositiveMin(double positiveMin);
+
+    /**
+     * The fully materialized distances if they are held in memory,
+     * otherwise null.
+     *
+     * @return row major distances of all thread rows or null
+     */
+    public abstract short[] getResidentDistances();
+
+    /**
+     * Weights to use with the block last returned by
+     * {@link #getDistances(int)}. Rows are indexed as
+     * <code>threadLocalRow - getWeightRowOffset(block)</code>.
+     *
+     * @param block the block index
+     * @param weights the weights of all thread rows
+     * @return the weights of the block
+     */
+    public WeightsWrap1D getWeights(int block, WeightsWrap1D weights) {
+        if (weightsFactory == null) {
+            return weights;
+        }
+        WeightsWrap1D blockWeights = getBlockWeights(block, weights);
+        if (avgDistForSammon > 0.0) {
+            blockWeights.setAvgDistForSammon(avgDistForSammon);
+        }
+        return blockWeights;
+    }
+
+    public int getWeightRowOffset(int block) {
+        return weightsFactory != null ? getBlockStartRow(block) : 0;
+    }
+
+    /**
+     * Whether weights are only available block by block, in which case the
+     * weights of all thread rows must not be used.
+     *
+     * @return true if weights come with each block
+     */
+    public boolean hasBlockWeights() {
+        return weightsFactory != null;
+    }
+
+    public void setAvgDistForSammon(double avgDist) {
+        avgDistForSammon = avgDist;
+    }
+
+    /**
+     * Weights of the block last returned by {@link #getDistances(int)} when
+     * a weights factory is given
+     *
+     * @param block the block index
+     * @param weights the weights of all thread rows
+     * @return the block weights
+     */
+    protected abstract WeightsWrap1D getBlockWeights(
+            int block, WeightsWrap1D weights);
+
+    protected WeightsWrap1D createBlockWeights(
+            int block, short[] weights, short[] distances,
+            int globalRowOffset) {
+        int startRow = getBlockStartRow(block) + globalRowOffset;
+        return weightsFactory.create(weights, distances,
+                new Range(startRow, startRow + getBlockRowCount(block) - 1));
+    }
+
+    /**
+     * Releases any resources held for the blocks
+     */
+    public void close() {
+    }
+}
@@ -0,0 +1,78 @@
+package edu.indiana.soic.spidal.damds;
+
+/**
+ * Distances between feature vectors stored row major in a single array.
+ */
+public enum DistanceMetric {
+    EUCLIDEAN {
+        @Override
+        public double distance(double[] x, int i, int j, int dim) {
+            double t = 0.0;
+            double e;
+            i *= dim;
+            j *= dim;
+            for (int k = 0; k < dim; ++k) {
+                e = x[i + k] - x[j + k];
+                t += e * e;
+            }
+            return Math.sqrt(t);
+        }
+    },
+    /**
+     * One minus the cosine similarity. Expects vectors normalized by
+     * {@link #prepare(double[], int)}.
+     */
+    COSINE {
+        @Override
+        public void prepare(double[] x, int dim) {
+            for (int i = 0; i < x.length; i += dim) {
+                double norm = 0.0;
+                for (int k = 0; k < dim; ++k) {
+                    norm += x[i + k] * x[i + k];
+                }
+                if (norm == 0.0) continue;
+                norm = 1.0 / Math.sqrt(norm);
+                for (int k = 0; k < dim; ++k) {
+                    x[i + k] *= norm;
+                }
+            }
+        }
+
+        @Override
+        public double distance(double[] x, int i, int j, int dim) {
+            double dot = 0.0;
+            i *= dim;
+            j *= dim;
+            for (int k = 0; k < dim; ++k) {
+                dot += x[i + k] * x[j + k];
+            }
+            return Math.max(0.0, 1.0 - dot);
+        }
+    },
+    /**
+     * Fraction of components that differ.
+     */
+    HAMMING {
+        @Override
+        public double distance(double[] x, int i, int j, int dim) {
+            int count = 0;
+            i *= dim;
+            j *= dim;
+            for (int k = 0; k < dim; ++k) {
+                if (x[i + k] != x[j + k]) ++count;
+            }
+            return count * 1.0 / dim;
+        }
+    };
+
+    /**
+     * Transforms the loaded vectors in place before any distance is taken.
+     *
+     * @param x row major vectors
+     * @param dim vector dimension
+     */
+    public void prepare(double[] x, int dim) {
+    }
+
+    public abstract double distance(double[] x, int i, int j, int dim);
+}
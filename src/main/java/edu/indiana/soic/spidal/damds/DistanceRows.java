@@ -0,0 +1,112 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+/**
+ * Helpers shared by the classes that copy pairs out of a thread's distance
+ * blocks into their own sparse form: {@link SparseDistances},
+ * {@link SampledStress}, {@link MultilevelSample} and
+ * {@link NearestNeighbors}. Their builders read the blocks as the run uses
+ * them, so they should be called after zero distances are raised to the
+ * positive minimum and the average distance is set for Sammon weights.
+ */
+public class DistanceRows {
+    public static final double INV_SHORT_MAX = 1.0 / Short.MAX_VALUE;
+
+    /**
+     * @return the distance between points i and j of the row major points v
+     * of dimension d
+     */
+    public static double calculateEuclideanDist(
+            double[] v, int i, int j, int d) {
+        double t = 0.0;
+        double e;
+        i = d * i;
+        j = d * j;
+        for (int k = 0; k < d; ++k) {
+            e = v[i + k] - v[j + k];
+            t += e * e;
+        }
+        return Math.sqrt(t);
+    }
+
+    /**
+     * Collects the k nearest candidate columns of each thread row, by known
+     * distance and with a non zero weight, into lists of capacity k kept
+     * as {@link #insertNearest} does. A row never counts itself.
+     *
+     * @param blocks the distances of the thread rows
+     * @param weights the weights of all thread rows
+     * @param globalRowOffset the global row of the first thread row
+     * @param k capacity of each row's list
+     * @param skippedRows global rows left with an empty list, or null
+     * @param candidates global columns that may be collected, or null for
+     *                   all
+     * @param counts receives the length of each row's list
+     * @param columns receives the columns, k per row
+     * @param distances receives the distances, k per row
+     * @param nearestWeights receives the weights, k per row
+     */
+    public static void collectNearest(
+            DistanceBlocks blocks, WeightsWrap1D weights, int globalRowOffset,
+            int k, boolean[] skippedRows, boolean[] candidates, int[] counts,
+            int[] columns, short[] distances, double[] nearestWeights) {
+        if (k == 0) return;
+        final int globalColCount = ParallelOps.globalColCount;
+        for (int block = 0; block < blocks.getBlockCount(); ++block) {
+            short[] blockDistances = blocks.getDistances(block);
+            WeightsWrap1D blockWeights = blocks.getWeights(block, weights);
+            int weightRowOffset = blocks.getWeightRowOffset(block);
+            int blockStartRow = blocks.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + blocks.getBlockRowCount(block);
+            for (int row = blockStartRow; row < blockEndRow; ++row) {
+                int globalRow = row + globalRowOffset;
+                if (skippedRows != null && skippedRows[globalRow]) continue;
+                int blockRowOffset = (row - blockStartRow) * globalColCount;
+                int start = row * k;
+                int count = 0;
+                for (int col = 0; col < globalColCount; ++col) {
+                    if (col == globalRow) continue;
+                    if (candidates != null && !candidates[col]) continue;
+                    short d = blockDistances[blockRowOffset + col];
+                    if (d < 0) continue;
+                    // Skips the weight lookup of columns too far to insert
+                    if (count == k && d >= distances[start + k - 1]) {
+                        continue;
+                    }
+                    double w = blockWeights.getWeight(
+                            row - weightRowOffset, col);
+                    if (w == 0) continue;
+                    count = insertNearest(columns, distances, nearestWeights,
+                            start, count, k, col, d, w);
+                }
+                counts[row] = count;
+            }
+        }
+    }
+
+    /**
+     * Adds a point to a list of at most capacity nearest points kept in
+     * ascending distance, dropping the farthest when the list is full.
+     *
+     * @return the new length of the list
+     */
+    public static int insertNearest(
+            int[] columns, short[] distances, double[] weights, int start,
+            int count, int capacity, int col, short d, double w) {
+        if (count == capacity && d >= distances[start + capacity - 1]) {
+            return count;
+        }
+        int p = Math.min(count, capacity - 1);
+        while (p > 0 && distances[start + p - 1] > d) {
+            columns[start + p] = columns[start + p - 1];
+            distances[start + p] = distances[start + p - 1];
+            weights[start + p] = weights[start + p - 1];
+            --p;
+        }
+        columns[start + p] = col;
+        distances[start + p] = d;
+        weights[start + p] = w;
+        return Math.min(count + 1, capacity);
+    }
+}
@@ -0,0 +1,216 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static edu.indiana.soic.spidal.damds.DistanceRows.INV_SHORT_MAX;
+
+/**
+ * A random subsample of the points for the coarse phase of multilevel
+ * runs. It holds the distances among sampled points in sparse form, so
+ * SMACOF over them costs the square of the sample size instead of N^2,
+ * and for each thread row the nearest sampled points, which place the
+ * unsampled points by interpolation once the coarse phase ends.
+ * Incremental runs use the points of the previous run as the sample, to
+ * place the appended points.
+ */
+public class MultilevelSample {
+    // Sampled points each unsampled point is interpolated against
+    private static final int INTERPOLATION_NEIGHBORS = 10;
+    private static final int INTERPOLATION_ITERATIONS = 50;
+    private static final double INTERPOLATION_TOLERANCE = 1e-6;
+
+    private final boolean[] isSampled;
+    private final int sampleSize;
+    private final SparseDistances coarseDistances;
+    private final int rowCount;
+    private final int globalRowOffset;
+    private final int[] neighborCounts;
+    private final int[] neighbors;
+    private final short[] neighborDistances;
+    private final double[] neighborWeights;
+
+    private MultilevelSample(
+            boolean[] isSampled, int sampleSize,
+            SparseDistances coarseDistances, int rowCount,
+            int globalRowOffset, int[] neighborCounts, int[] neighbors,
+            short[] neighborDistances, double[] neighborWeights) {
+        this.isSampled = isSampled;
+        this.sampleSize = sampleSize;
+        this.coarseDistances = coarseDistances;
+        this.rowCount = rowCount;
+        this.globalRowOffset = globalRowOffset;
+        this.neighborCounts = neighborCounts;
+        this.neighbors = neighbors;
+        this.neighborDistances = neighborDistances;
+        this.neighborWeights = neighborWeights;
+    }
+
+    /**
+     * Samples the points and collects what the coarse phase and the
+     * interpolation need from the given blocks, prepared as
+     * {@link DistanceRows} requires.
+     *
+     * @param blocks the distances of the thread rows
+     * @param weights the weights of all thread rows
+     * @param globalRowOffset the global row of the first thread row
+     * @param sampleSize number of sampled points
+     * @param seed seed of the sample, the same on every thread
+     * @return the sample
+     */
+    public static MultilevelSample build(
+            DistanceBlocks blocks, WeightsWrap1D weights, int globalRowOffset,
+            int sampleSize, long seed) {
+        final int numPoints = ParallelOps.globalColCount;
+        sampleSize = Math.min(sampleSize, numPoints);
+
+        // Partial Fisher-Yates shuffle, identical on every thread
+        int[] order = new int[numPoints];
+        for (int i = 0; i < numPoints; ++i) order[i] = i;
+        Random random = new Random(seed);
+        boolean[] isSampled = new boolean[numPoints];
+        for (int i = 0; i < sampleSize; ++i) {
+            int j = i + random.nextInt(numPoints - i);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+            isSampled[order[i]] = true;
+        }
+
+        SparseDistances coarseDistances = SparseDistances.build(blocks,
+                weights, globalRowOffset, false, isSampled);
+        return build(blocks, weights, globalRowOffset, isSampled, sampleSize,
+                coarseDistances);
+    }
+
+    /**
+     * Takes the first points as the sample, for placing points appended
+     * after them. There are no coarse distances.
+     *
+     * @param prefixCount number of leading points in the sample
+     */
+    public static MultilevelSample buildPrefix(
+            DistanceBlocks blocks, WeightsWrap1D weights, int globalRowOffset,
+            int prefixCount) {
+        boolean[] isSampled = new boolean[ParallelOps.globalColCount];
+        Arrays.fill(isSampled, 0, prefixCount, true);
+        return build(blocks, weights, globalRowOffset, isSampled, prefixCount,
+                null);
+    }
+
+    private static MultilevelSample build(
+            DistanceBlocks blocks, WeightsWrap1D weights, int globalRowOffset,
+            boolean[] isSampled, int sampleSize,
+            SparseDistances coarseDistances) {
+        final int rowCount = blocks.getRowCount();
+        final int k = INTERPOLATION_NEIGHBORS;
+        int[] neighborCounts = new int[rowCount];
+        int[] neighbors = new int[rowCount * k];
+        short[] neighborDistances = new short[rowCount * k];
+        double[] neighborWeights = new double[rowCount * k];
+        DistanceRows.collectNearest(blocks, weights, globalRowOffset, k,
+                isSampled, isSampled, neighborCounts, neighbors,
+                neighborDistances, neighborWeights);
+        return new MultilevelSample(isSampled, sampleSize, coarseDistances,
+                rowCount, globalRowOffset, neighborCounts, neighbors,
+                neighborDistances, neighborWeights);
+    }
+
+    public SparseDistances getCoarseDistances() {
+        return coarseDistances;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Places the unsampled thread rows against their nearest sampled
+     * points, keeping the sampled rows where they are.
+     *
+     * @param preX all points, where only sampled points need be placed
+     * @param targetDimension point dimension
+     * @param threadRows row major thread rows of the placed points
+     */
+    public void interpolate(
+            double[] preX, int targetDimension, double[] threadRows) {
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            int outOffset = row * targetDimension;
+            if (isSampled[globalRow] || neighborCounts[row] == 0) {
+                System.arraycopy(preX, globalRow * targetDimension,
+                        threadRows, outOffset, targetDimension);
+                continue;
+            }
+            interpolatePoint(preX, targetDimension, neighbors,
+                    neighborDistances, neighborWeights,
+                    row * INTERPOLATION_NEIGHBORS, neighborCounts[row],
+                    threadRows, outOffset);
+        }
+    }
+
+    /**
+     * Places one point by majorizing its weighted stress against fixed
+     * points, starting from their mean and iterating
+     * x = sum_j w_j (x_j + delta_j (x - x_j) / |x - x_j|) / sum_j w_j.
+     *
+     * @param preX positions of the fixed points
+     * @param targetDimension point dimension
+     * @param columns indices of the fixed points
+     * @param distances distances to the fixed points
+     * @param weights weights of the fixed points
+     * @param start offset of the point's entries in the three arrays
+     * @param count number of fixed points
+     * @param out receives the position
+     * @param outOffset offset of the position in out
+     */
+    public static void interpolatePoint(
+            double[] preX, int targetDimension, int[] columns,
+            short[] distances, double[] weights, int start, int count,
+            double[] out, int outOffset) {
+        double[] x = new double[targetDimension];
+        double[] next = new double[targetDimension];
+        double sumOfWeights = 0.0;
+        for (int n = start; n < start + count; ++n) {
+            sumOfWeights += weights[n];
+            int colOffset = columns[n] * targetDimension;
+            for (int k = 0; k < targetDimension; ++k) {
+                x[k] += weights[n] * preX[colOffset + k];
+            }
+        }
+        for (int k = 0; k < targetDimension; ++k) {
+            x[k] /= sumOfWeights;
+        }
+
+        for (int itr = 0; itr < INTERPOLATION_ITERATIONS; ++itr) {
+            Arrays.fill(next, 0.0);
+            for (int n = start; n < start + count; ++n) {
+                int colOffset = columns[n] * targetDimension;
+                double dist = 0.0;
+                for (int k = 0; k < targetDimension; ++k) {
+                    double e = x[k] - preX[colOffset + k];
+                    dist += e * e;
+                }
+                dist = Math.sqrt(dist);
+                double scale = dist > 1.0E-10
+                        ? distances[n] * INV_SHORT_MAX / dist
+                        : 0.0;
+                for (int k = 0; k < targetDimension; ++k) {
+                    double xj = preX[colOffset + k];
+                    next[k] += weights[n] * (xj + scale * (x[k] - xj));
+                }
+            }
+            double change = 0.0;
+            for (int k = 0; k < targetDimension; ++k) {
+                next[k] /= sumOfWeights;
+                double e = next[k] - x[k];
+                change += e * e;
+                x[k] = next[k];
+            }
+            if (Math.sqrt(change) < INTERPOLATION_TOLERANCE) break;
+        }
+        System.arraycopy(x, 0, out, outOffset, targetDimension);
+    }
+}
@@ -0,0 +1,110 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+import static edu.indiana.soic.spidal.damds.DistanceRows.INV_SHORT_MAX;
+import static edu.indiana.soic.spidal.damds.DistanceRows.calculateEuclideanDist;
+
+/**
+ * The k nearest known distances of each thread row, kept sparsely so the
+ * near field of a point costs k pairs however large N grows. The rest of a
+ * row, the far field, is left to sampling.
+ */
+public class NearestNeighbors {
+    private final int rowCount;
+    private final int neighborCount;
+    private final int[] counts;
+    private final int[] columns;
+    private final short[] distances;
+    private final double[] weights;
+    // Marks the neighbors of the row being sampled
+    private final boolean[] isNeighbor;
+
+    private NearestNeighbors(
+            int rowCount, int neighborCount, int[] counts, int[] columns,
+            short[] distances, double[] weights) {
+        this.rowCount = rowCount;
+        this.neighborCount = neighborCount;
+        this.counts = counts;
+        this.columns = columns;
+        this.distances = distances;
+        this.weights = weights;
+        isNeighbor = new boolean[ParallelOps.globalColCount];
+    }
+
+    /**
+     * Collects the neighbors from the given blocks, prepared as
+     * {@link DistanceRows} requires.
+     *
+     * @param blocks the distances of the thread rows
+     * @param weights the weights of all thread rows
+     * @param globalRowOffset the global row of the first thread row
+     * @param neighborCount neighbors kept per row
+     * @return the neighbors
+     */
+    public static NearestNeighbors build(
+            DistanceBlocks blocks, WeightsWrap1D weights, int globalRowOffset,
+            int neighborCount) {
+        final int rowCount = blocks.getRowCount();
+        final int globalColCount = ParallelOps.globalColCount;
+        final int k = Math.min(neighborCount, globalColCount - 1);
+        int[] counts = new int[rowCount];
+        int[] columns = new int[rowCount * k];
+        short[] distances = new short[rowCount * k];
+        double[] neighborWeights = new double[rowCount * k];
+        DistanceRows.collectNearest(blocks, weights, globalRowOffset, k, null,
+                null, counts, columns, distances, neighborWeights);
+        return new NearestNeighbors(rowCount, k, counts, columns, distances,
+                neighborWeights);
+    }
+
+    /**
+     * Adds the exact near field stress gradient of a row,
+     * sum_j w_ij (1 - delta_ij / d_ij) (x_i - x_j) over its neighbors, and
+     * marks them so far field sampling can skip them.
+     */
+    public void addNearGradient(
+            int row, int globalRow, double[] preX, int targetDimension,
+            double diff, double[] out, int outOffset) {
+        int iOffset = globalRow * targetDimension;
+        int start = row * neighborCount;
+        for (int n = start; n < start + counts[row]; ++n) {
+            int col = columns[n];
+            isNeighbor[col] = true;
+            int jOffset = col * targetDimension;
+            double dist = calculateEuclideanDist(preX, globalRow, col,
+                    targetDimension);
+            double origD = distances[n] * INV_SHORT_MAX;
+            double scale = weights[n] *
+                    (dist >= 1.0E-10 && diff < origD
+                            ? 1.0 - (origD - diff) / dist
+                            : 1.0);
+            for (int k = 0; k < targetDimension; ++k) {
+                out[outOffset + k] += scale *
+                        (preX[iOffset + k] - preX[jOffset + k]);
+            }
+        }
+    }
+
+    public boolean isNeighbor(int col) {
+        return isNeighbor[col];
+    }
+
+    /**
+     * Clears the marks of {@link #addNearGradient} once the row is done
+     */
+    public void unmark(int row) {
+        int start = row * neighborCount;
+        for (int n = start; n < start + counts[row]; ++n) {
+            isNeighbor[columns[n]] = false;
+        }
+    }
+
+    public int getNeighborCount() {
+        return neighborCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+}
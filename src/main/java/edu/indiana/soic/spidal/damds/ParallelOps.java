@@ -9,6 +9,7 @@ import mpi.Intracomm;
 import mpi.MPI;
 import mpi.MPIException;
 import mpi.Op;
+import mpi.Request;
 import net.openhft.lang.io.ByteBufferBytes;
 import net.openhft.lang.io.Bytes;
 
@@ -76,6 +77,11 @@ public class ParallelOps {
     // Buffers for MPI operations
     private static ByteBuffer statBuffer;
     private static DoubleBuffer doubleBuffer;
+    // Grown to the longest array summed so far
+    private static DoubleBuffer doubleArrayBuffer;
+    // The array sum started by startAllReduce and its request
+    private static DoubleBuffer pendingArrayBuffer;
+    private static Request pendingAllReduce;
     private static double[] doubleArray;
     private static IntBuffer intBuffer;
     public static LongBuffer threadsAndMPIBuffer;
@@ -249,8 +255,18 @@ public class ParallelOps {
 
     public static void setParallelDecomposition(int globalRowCount, int targetDimension)
         throws IOException, MPIException {
+        setParallelDecomposition(globalRowCount, targetDimension, globalRowCount);
+    }
+
+    /**
+     * Decomposes globalRowCount rows, while points broadcast over threads
+     * may number up to bcastPointCount
+     */
+    public static void setParallelDecomposition(
+        int globalRowCount, int targetDimension, int bcastPointCount)
+        throws IOException, MPIException {
 
-        threadComm = new ThreadCommunicator(threadCount, globalRowCount, targetDimension);
+        threadComm = new ThreadCommunicator(threadCount, bcastPointCount, targetDimension);
         //	First divide points among processes
         procRowRanges = RangePartitioner.partition(globalRowCount,
                                                        worldProcsCount);
@@ -416,6 +432,49 @@ public class ParallelOps {
         return doubleBuffer.get(0);
     }
 
+    /**
+     * Sums an array over all processes in place
+     */
+    public static void allReduce(double[] values) throws MPIException {
+        if (doubleArrayBuffer == null ||
+            doubleArrayBuffer.capacity() < values.length) {
+            doubleArrayBuffer = MPI.newDoubleBuffer(values.length);
+        }
+        doubleArrayBuffer.clear();
+        doubleArrayBuffer.put(values);
+        worldProcsComm.allReduce(doubleArrayBuffer, values.length, MPI.DOUBLE,
+                                 MPI.SUM);
+        doubleArrayBuffer.rewind();
+        doubleArrayBuffer.get(values);
+    }
+
+    /**
+     * Starts summing an array over all processes without waiting, so other
+     * communication and work can proceed until
+     * {@link #finishAllReduce(double[])}. One sum may be pending at a time.
+     */
+    public static void startAllReduce(double[] values) throws MPIException {
+        if (pendingArrayBuffer == null ||
+            pendingArrayBuffer.capacity() < values.length) {
+            pendingArrayBuffer = MPI.newDoubleBuffer(values.length);
+        }
+        pendingArrayBuffer.clear();
+        pendingArrayBuffer.put(values);
+        pendingAllReduce = worldProcsComm.iAllReduce(
+            pendingArrayBuffer, values.length, MPI.DOUBLE, MPI.SUM);
+    }
+
+    /**
+     * Waits for the sum started by {@link #startAllReduce(double[])} and
+     * copies it into values
+     */
+    public static void finishAllReduce(double[] values) throws MPIException {
+        pendingAllReduce.waitFor();
+        pendingAllReduce = null;
+        pendingArrayBuffer.rewind();
+        pendingArrayBuffer.get(values);
+    }
+
     public static int allReduce(int value) throws MPIException{
         intBuffer.put(0, value);
         worldProcsComm.allReduce(intBuffer, 1, MPI.INT, MPI.SUM);
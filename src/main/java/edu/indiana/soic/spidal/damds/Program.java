@@ -2,8 +2,10 @@ package edu.indiana.soic.spidal.damds;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import edu.indiana.soic.spidal.configuration.ConfigurationMgr;
 import edu.indiana.soic.spidal.configuration.section.DAMDSSection;
+import edu.indiana.soic.spidal.damds.io.VectorFileReader;
 import edu.indiana.soic.spidal.damds.threads.SpidalThreads;
 import edu.indiana.soic.spidal.damds.threads.ThreadBitAssigner;
 import mpi.MPIException;
@@ -57,6 +59,8 @@ public class Program {
     //Config Settings
     public static DAMDSSection config;
     public static ByteOrder byteOrder;
+    // Feature vectors shared by all threads of a process in vector input mode
+    public static double[] vectors;
 
     public static int BlockSize;
     private static Utils utils = new Utils(0);
@@ -102,8 +106,24 @@ public class Program {
 
             //  Set up MPI and threads parallelism
             ParallelOps.setupParallelism(args);
+            // Interpolation splits the new points instead of the mapped
+            // ones, which are still broadcast over threads when read
+            boolean isInterpolation = config.interpolationPointCount > 0;
             ParallelOps.setParallelDecomposition(
-                config.numberDataPoints, config.targetDimension);
+                isInterpolation
+                    ? config.interpolationPointCount
+                    : config.numberDataPoints, config.targetDimension,
+                isInterpolation
+                    ? Math.max(config.interpolationPointCount,
+                               config.numberDataPoints)
+                    : config.numberDataPoints);
+
+            if (!Strings.isNullOrEmpty(config.vectorFile)) {
+                vectors = VectorFileReader.read(config.vectorFile,
+                    config.numberDataPoints, config.vectorDimension, byteOrder);
+                DistanceMetric.valueOf(config.distanceMetric)
+                    .prepare(vectors, config.vectorDimension);
+            }
 
             /*if (ParallelOps.threadCount > 1) {
                 threads = new SpidalThreads(ParallelOps.threadCount, false, true,
@@ -136,7 +156,11 @@ public class Program {
                                             BlockSize, mainTimer,
                                             lock);
                             try {
-                                worker.run();
+                                if (isInterpolation) {
+                                    worker.runInterpolation();
+                                } else {
+                                    worker.run();
+                                }
                             } catch (IOException e) {
                                 e.printStackTrace();
                             }
@@ -153,9 +177,14 @@ public class Program {
                     BitSet bitSet = ThreadBitAssigner.getBitSet(ParallelOps.worldProcRank, 0, ParallelOps.threadCount, cps);
                     Affinity.setAffinity(bitSet);
                 }
-                new ProgramWorker(0, ParallelOps.threadComm, config,
-                        byteOrder, BlockSize, mainTimer, null)
-                        .run();
+                ProgramWorker worker = new ProgramWorker(0,
+                        ParallelOps.threadComm, config, byteOrder, BlockSize,
+                        mainTimer, null);
+                if (isInterpolation) {
+                    worker.runInterpolation();
+                } else {
+                    worker.run();
+                }
             }
 
 
@@ -5,6 +5,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
 import edu.indiana.soic.spidal.common.*;
 import edu.indiana.soic.spidal.configuration.section.DAMDSSection;
+import edu.indiana.soic.spidal.damds.io.BlockCompressedMatrixReader;
 import edu.indiana.soic.spidal.damds.threads.ThreadCommunicator;
 import edu.indiana.soic.spidal.damds.timing.*;
 import mpi.MPIException;
@@ -29,6 +30,12 @@ public class ProgramWorker {
     // Constants
     private final double INV_SHORT_MAX = 1.0 / Short.MAX_VALUE;
     private final double SHORT_MAX = Short.MAX_VALUE;
+    // Standard errors a sampled stress decrease is padded by before it is
+    // taken as converged
+    private static final double STRESS_SAMPLE_MARGIN = 2.0;
+    private static final long STRESS_SAMPLE_SEED = 1234L;
+    private static final long MULTILEVEL_SAMPLE_SEED = 4321L;
+    private static final long STOCHASTIC_SEED = 2718L;
 
     // Calculated Constants
     private double INV_SUM_OF_SQUARE;
@@ -38,17 +45,74 @@ public class ProgramWorker {
     private double[] BC;
     private double[] MMr;
     private double[] MMAp;
+    private double[] MMz;
+    // Thread rows of x, r, p and z of row sliced CG, or null when CG runs
+    // on full vectors
+    private double[] threadX;
+    private double[] threadR;
+    private double[] threadP;
+    private double[] threadZ;
+    // Extra thread rows of pipelined CG: w = Au, s = Ap and As, and with
+    // a preconditioner m = Mw and q = Mp, or null when not pipelined
+    private double[] threadW;
+    private double[] threadS;
+    private double[] threadAs;
+    private double[] threadM;
+    private double[] threadQ;
+    // The two inner products of a pipelined CG iteration, summed at once
+    private double[] pipelinedSums;
+    // Points of the previous SMACOF iteration for Nesterov momentum, or
+    // null when iterations are not accelerated
+    private double[] previousX;
+    // Active set state per thread row: the points at the last BC, the last
+    // computed BC rows, and which rows reuse them until the next full sweep
+    private double[] activeSetLastX;
+    private double[] activeSetBC;
+    private boolean[] frozenRows;
+    private int activeSetIteration;
+    // Whether the last BC reused frozen rows
+    private boolean isPartialSweep;
+    private SampledStress sampledStress;
+    // Sample the hottest temperatures run on, and the full problem state it
+    // stands in for while they do
+    private MultilevelSample multilevelSample;
+    private boolean isCoarsePhase;
+    private SparseDistances fineSparseDistances;
+    private SampledStress fineSampledStress;
+    private double fineInvSumOfSquare;
+    // Draws the columns of stochastic updates, or null when updates are
+    // exact
+    private Random stochasticRandom;
+    // Exact near field of stochastic updates, or null when every column is
+    // sampled
+    private NearestNeighbors nearestNeighbors;
+    // Inverse of the diagonal of V - W for every point and dimension, or
+    // null when CG is not preconditioned
+    private double[] preconditioner;
+    // Approximate eigenvectors deflated from every CG solve, or null when
+    // solves are not recycled
+    private RecycledKrylovSpace recycledSpace;
 
     private double[][] threadPartialBofZ;
     private double[] threadPartialMM;
 
     private double[] v;
+    private double[] blockMM;
+    private double[] blockV;
 
     //Config Settings
     private DAMDSSection config;
     private ByteOrder byteOrder;
-    private short[] distances;
+    private DistanceBlocks distances;
     private WeightsWrap1D weights;
+    private SparseDistances sparseDistances;
+    private WeightMode weightMode;
+    // Raw weights backing the specialized kernels of each weight mode
+    private double[] simpleWeights;
+    private short[] weightValues;
+    private double[] sammonInverseDistances;
+    private double[] rowWeights;
+    private boolean isClosedFormUpdate;
 
     private int BlockSize;
 
@@ -130,7 +194,7 @@ public class ProgramWorker {
         threadLocalMmapXWriteBytes = ParallelOps.mmapXReadBytes.slice
                 (threadLocalMmapXWriteByteOffset, threadLocalMmapXWriteByteExtent);
 
-        threadLocalFullXBytes = ParallelOps.fullXBytes.slice(0, config.numberDataPoints *
+        threadLocalFullXBytes = ParallelOps.fullXBytes.slice(0, ParallelOps.globalColCount *
                 config.targetDimension * Double.BYTES);
 
 
@@ -144,6 +208,7 @@ public class ProgramWorker {
         try {
             setup();
             readDistancesAndWeights(config.isSammon);
+            weightMode = selectWeightMode();
             /*System.out.println("Rank " + ParallelOps.worldProcRank + " " +
                     "TID " + threadId + "Came " +
                     "here ");*/
@@ -160,13 +225,95 @@ public class ProgramWorker {
                             missingDistPercent);
 
             weights.setAvgDistForSammon(distanceSummary.getAverage());
-            changeZeroDistancesToPostiveMin(distances, distanceSummary
-                    .getPositiveMin());
+            distances.setAvgDistForSammon(distanceSummary.getAverage());
+            if (weightMode == WeightMode.SAMMON) {
+                sammonInverseDistances = generateSammonInverseDistances(
+                        distanceSummary.getAverage());
+            }
+            utils.printMessage("\nWeight mode " + weightMode);
+            distances.changeZeroDistancesToPositiveMin(
+                    distanceSummary.getPositiveMin());
+            if (config.stressSamplesPerRow > 0) {
+                sampledStress = SampledStress.build(distances, weights,
+                        globalThreadRowRange.getStartIndex(),
+                        config.stressSamplesPerRow, STRESS_SAMPLE_SEED);
+            }
+            if (config.multilevelSampleSize > 0) {
+                multilevelSample = MultilevelSample.build(distances, weights,
+                        globalThreadRowRange.getStartIndex(),
+                        config.multilevelSampleSize, MULTILEVEL_SAMPLE_SEED);
+            }
+            if (config.nearestNeighbors > 0) {
+                nearestNeighbors = NearestNeighbors.build(distances, weights,
+                        globalThreadRowRange.getStartIndex(),
+                        config.nearestNeighbors);
+            }
+            // Points of the previous run, which come first in the matrix,
+            // and what places the points appended after them
+            double[] previousPoints = null;
+            MultilevelSample appendedPoints = null;
+            if (!Strings.isNullOrEmpty(config.previousPointsFile)) {
+                previousPoints = new double[config.numberDataPoints *
+                        config.targetDimension];
+                int previousCount = readInitMapping(
+                        config.previousPointsFile, previousPoints,
+                        config.targetDimension, 1);
+                appendedPoints = MultilevelSample.buildPrefix(distances,
+                        weights, globalThreadRowRange.getStartIndex(),
+                        previousCount);
+                utils.printMessage(String.format(
+                        "\nIncremental run from %d previous points, %d " +
+                                "appended",
+                        previousCount,
+                        config.numberDataPoints - previousCount));
+            }
+
+            double density = distanceSummary.getCount() /
+                    (Math.pow(config.numberDataPoints, 2));
+            if (density < config.sparseDensityThreshold ||
+                    config.isTemperaturePruned) {
+                sparseDistances = SparseDistances.build(distances, weights,
+                        globalThreadRowRange.getStartIndex(),
+                        config.isTemperaturePruned);
+                if (config.isTemperaturePruned &&
+                        missingDistCount.getValue() == 0 &&
+                        (weightMode == WeightMode.UNIT ||
+                                weightMode == WeightMode.SIMPLE)) {
+                    sparseDistances.setRankOneWeights(simpleWeights);
+                }
+                utils.printMessage(String.format(
+                        config.isTemperaturePruned
+                                ? "\nUsing distance sorted rows with " +
+                                "density %.5g"
+                                : "\nUsing sparse distances with density " +
+                                "%.5g",
+                        density));
+                // Dense rows are no longer needed
+                distances.close();
+                distances = null;
+                weights = null;
+            }
+
+            if (config.stochasticColumns > 0 ||
+                    config.nearestNeighbors > 0) {
+                if (sparseDistances != null) {
+                    utils.printAndThrowRuntimeException(
+                            "StochasticColumns and NearestNeighbors are not " +
+                                    "supported with sparse distances");
+                }
+                stochasticRandom = new Random(STOCHASTIC_SEED +
+                        globalThreadRowRange.getStartIndex());
+            }
 
             // Allocating point arrays once for all
             allocateArrays();
 
-            if (Strings.isNullOrEmpty(config.initialPointsFile)) {
+            if (previousPoints != null) {
+                System.arraycopy(previousPoints, 0, preX, 0, preX.length);
+                appendedPoints.interpolate(preX, config.targetDimension,
+                        threadPartialMM);
+                gatherThreadRows(threadPartialMM, preX);
+            } else if (Strings.isNullOrEmpty(config.initialPointsFile)) {
                 generateInitMapping(
                         config.numberDataPoints, config.targetDimension, preX);
             } else {
@@ -181,13 +328,21 @@ public class ProgramWorker {
             double tMin = config.tMinFactor * distanceSummary.getPositiveMin
                     () / Math.sqrt(2.0 * config.targetDimension);
 
-            generateV(distances, weights, v);
+            boolean hasMissingDistances = missingDistCount.getValue() > 0;
+            prepareSolver(!hasMissingDistances);
             double preStress = calculateStress(
                     preX, config.targetDimension, tCur, distances, weights,
                     INV_SUM_OF_SQUARE);
             utils.printMessage("\nInitial stress=" + preStress);
 
-            tCur = config.alpha * tMax;
+            // Incremental runs only refine, so they start cold
+            tCur = previousPoints != null
+                    ? config.incrementalTemperature * tMax
+                    : config.alpha * tMax;
+            if (multilevelSample != null &&
+                    tCur >= config.multilevelTemperature * tMax) {
+                enterCoarsePhase();
+            }
 
             // TODO - turning off barriers
             /*if (threadId == 0) {
@@ -204,12 +359,34 @@ public class ProgramWorker {
             Stopwatch loopTimer = Stopwatch.createStarted();
 
             int loopNum = 0;
-            double diffStress;
             double stress = -1.0;
             RefObj<Integer> outRealCGIterations = new RefObj<>(0);
             RefObj<Integer> cgCount = new RefObj<>(0);
             int smacofRealIterations = 0;
+            // Iterations and time spent in each update mode
+            int diagonalIterations = 0;
+            long diagonalMillis = 0;
+            long solveMillis = 0;
+            CoolingSchedule cooling = new CoolingSchedule(config.alpha,
+                    config.coolingTargetIterations);
+            DeadlineSchedule deadline = new DeadlineSchedule(
+                    config.timeLimitMinutes, tMin, config.cgIter);
+            int iterationCap = Integer.MAX_VALUE;
+            ConvergenceController convergence =
+                    new ConvergenceController(config);
+            int cgIterLimit = config.cgIter;
             while (true) {
+                // Sampled gradient steps until the final temperature, which
+                // polishes with exact updates unless the near field is kept,
+                // where no update touches every pair
+                boolean isStochasticUpdate = stochasticRandom != null &&
+                        (tCur > 0 || nearestNeighbors != null) &&
+                        !isCoarsePhase;
+                boolean isDiagonalUpdate = !isStochasticUpdate &&
+                        !isClosedFormUpdate &&
+                        config.diagonalUpdateTemperature > 0 &&
+                        tCur >= config.diagonalUpdateTemperature * tMax;
+                Stopwatch temperatureTimer = Stopwatch.createStarted();
 
                 temperatureLoopTimings.startTiming(
                         TemperatureLoopTimings.TimingTask.PRE_STRESS);
@@ -219,7 +396,19 @@ public class ProgramWorker {
                 temperatureLoopTimings.endTiming(
                         TemperatureLoopTimings.TimingTask.PRE_STRESS);
 
-                diffStress = config.threshold + 1.0;
+                double temperatureStartStress = preStress;
+                convergence.start(preStress);
+                // BofZ changes with the temperature, so start with a full
+                // sweep
+                activeSetIteration = 0;
+                isPartialSweep = false;
+                if (sampledStress != null) {
+                    // Pairs the first estimate with the start of the
+                    // temperature
+                    sampledStress.evaluate(preX, config.targetDimension,
+                            tCur);
+                }
+                boolean isStressExact = true;
 
                 utils.printMessage(
                         String.format(
@@ -228,19 +417,36 @@ public class ProgramWorker {
 
                 int itrNum = 0;
                 cgCount.setValue(0);
+                // Momentum restarts with every temperature
+                double momentumT = 1.0;
+                if (previousX != null) {
+                    System.arraycopy(preX, 0, previousX, 0, preX.length);
+                }
                 temperatureLoopTimings.startTiming(
                         TemperatureLoopTimings.TimingTask.STRESS_LOOP);
-                while (diffStress >= config.threshold) {
+                String stopReason = null;
+                while (stopReason == null) {
+                    int cgCountBefore = cgCount.getValue();
+                    double beta = 0.0;
+                    if (previousX != null && !isStochasticUpdate) {
+                        double nextT = (1.0 + Math.sqrt(
+                                1.0 + 4.0 * momentumT * momentumT)) / 2.0;
+                        beta = (momentumT - 1.0) / nextT;
+                        momentumT = nextT;
+                        extrapolatePoints(preX, previousX, beta);
+                    }
 
                     zeroOutArray(threadPartialMM);
-                    stressLoopTimings.startTiming(
-                            StressLoopTimings.TimingTask.BC);
-                    calculateBC(
-                            preX, config.targetDimension, tCur, distances,
-                            weights, BlockSize, BC, threadPartialBofZ,
-                            threadPartialMM);
-                    stressLoopTimings.endTiming(
-                            StressLoopTimings.TimingTask.BC);
+                    if (!isStochasticUpdate) {
+                        stressLoopTimings.startTiming(
+                                StressLoopTimings.TimingTask.BC);
+                        calculateBC(
+                                preX, config.targetDimension, tCur,
+                                distances, weights, BlockSize, BC,
+                                threadPartialBofZ, threadPartialMM);
+                        stressLoopTimings.endTiming(
+                                StressLoopTimings.TimingTask.BC);
+                    }
 
                     // TODO - turning off barriers
                     /*if (threadId == 0) {
@@ -252,45 +458,148 @@ public class ProgramWorker {
 
                     stressLoopTimings.startTiming(
                             StressLoopTimings.TimingTask.CG);
-                    calculateConjugateGradient(preX, config.targetDimension,
-                            config.numberDataPoints,
-                            BC,
-                            config.cgIter,
-                            config.cgErrorThreshold, cgCount,
-                            outRealCGIterations, weights,
-                            BlockSize, v, MMr, MMAp, threadPartialMM);
+                    if (isStochasticUpdate) {
+                        double step = config.stochasticStepDecay /
+                                (config.stochasticStepDecay + itrNum);
+                        calculateStochasticUpdate(preX,
+                                config.targetDimension, tCur, distances,
+                                weights, v, step, threadPartialMM);
+                    } else if (isDiagonalUpdate) {
+                        calculateDiagonalUpdate(preX, config.targetDimension,
+                                config.numberDataPoints, BC, weights,
+                                BlockSize, v, threadPartialMM);
+                    } else if (isClosedFormUpdate) {
+                        calculateClosedFormUpdate(BC, config.targetDimension,
+                                config.numberDataPoints, preX);
+                    } else if (config.isPipelinedCG) {
+                        calculatePipelinedConjugateGradient(preX,
+                                config.targetDimension,
+                                config.numberDataPoints,
+                                BC,
+                                cgIterLimit,
+                                config.cgErrorThreshold, cgCount,
+                                outRealCGIterations, weights,
+                                BlockSize, v, threadPartialMM);
+                    } else if (config.isRowSlicedCG ||
+                            recycledSpace != null) {
+                        calculateRowSlicedConjugateGradient(preX,
+                                config.targetDimension,
+                                config.numberDataPoints,
+                                BC,
+                                cgIterLimit,
+                                config.cgErrorThreshold, cgCount,
+                                outRealCGIterations, weights,
+                                BlockSize, v, threadPartialMM);
+                    } else {
+                        calculateConjugateGradient(preX,
+                                config.targetDimension,
+                                config.numberDataPoints,
+                                BC,
+                                cgIterLimit,
+                                config.cgErrorThreshold, cgCount,
+                                outRealCGIterations, weights,
+                                BlockSize, v, MMr, MMAp, threadPartialMM);
+                    }
                     stressLoopTimings.endTiming(
                             StressLoopTimings.TimingTask.CG);
 
 
                     stressLoopTimings.startTiming(
                             StressLoopTimings.TimingTask.STRESS);
-                    stress = calculateStress(
-                            preX, config.targetDimension, tCur, distances,
-                            weights,
-                            INV_SUM_OF_SQUARE);
+                    // Stochastic temperatures only estimate stress, and only
+                    // when it is sampled
+                    isStressExact = !isStochasticUpdate &&
+                            (sampledStress == null || (itrNum + 1) %
+                                    config.exactStressInterval == 0);
+                    double decrease = 0.0;
+                    double decreaseBound = 0.0;
+                    if (sampledStress != null) {
+                        double[] estimate = estimateStress(preX,
+                                config.targetDimension, tCur);
+                        stress = estimate[0];
+                        decrease = estimate[1];
+                        decreaseBound = estimate[1] +
+                                STRESS_SAMPLE_MARGIN * estimate[2];
+                    }
+                    if (isStressExact) {
+                        stress = calculateStress(
+                                preX, config.targetDimension, tCur, distances,
+                                weights,
+                                INV_SUM_OF_SQUARE);
+                    }
+                    if (sampledStress == null && !isStochasticUpdate) {
+                        decrease = preStress - stress;
+                        decreaseBound = decrease;
+                    }
                     stressLoopTimings.endTiming(
                             StressLoopTimings.TimingTask.STRESS);
 
-                    diffStress = preStress - stress;
-                    preStress = stress;
+                    if (beta > 0.0 && decrease < 0.0) {
+                        // Momentum overshot, so go back to the last points
+                        // and restart from a plain step
+                        System.arraycopy(previousX, 0, preX, 0, preX.length);
+                        momentumT = 1.0;
+                        stress = preStress;
+                        if (sampledStress != null) {
+                            sampledStress.discardLast();
+                        }
+                        stopReason = convergence.check(itrNum,
+                                Double.POSITIVE_INFINITY, stress, -1);
+                    } else if (isStochasticUpdate) {
+                        // Sampled steps don't decrease stress every time,
+                        // so these temperatures take a fixed count
+                        if (itrNum + 1 >= config.stochasticIterations) {
+                            stopReason = "iterations";
+                        }
+                        preStress = stress;
+                    } else {
+                        boolean isSolvedByCG =
+                                !isDiagonalUpdate && !isClosedFormUpdate;
+                        // A sampled decrease only counts as small when
+                        // its upper bound is
+                        stopReason = convergence.check(itrNum, preStress,
+                                preStress - decreaseBound, isSolvedByCG
+                                        ? cgCount.getValue() - cgCountBefore
+                                        : -1);
+                        preStress = stress;
+                    }
+                    if (stopReason == null && itrNum + 1 >= iterationCap) {
+                        stopReason = "deadline";
+                    }
+                    if (stopReason != null && isPartialSweep) {
+                        // The last BC reused stale rows, so end the
+                        // temperature only after a full sweep
+                        stopReason = null;
+                        activeSetIteration = 0;
+                    }
 
                     if ((itrNum % 10 == 0) || (itrNum >= config.stressIter)) {
+                        // Stochastic iterations have no stress to show
+                        // unless it is sampled
                         utils.printMessage(
                                 String.format(
                                         "  Loop %d Iteration %d Avg CG count " +
-                                                "%.5g " +
-                                                "Stress " +
                                                 "%.5g", loopNum, itrNum,
                                         (cgCount.getValue() * 1.0 / (itrNum +
-                                                1)),
-                                        stress));
+                                                1))) +
+                                        (isStochasticUpdate &&
+                                                sampledStress == null
+                                                ? ""
+                                                : String.format(
+                                                " Stress %.5g", stress)));
                     }
                     ++itrNum;
                     ++smacofRealIterations;
                 }
                 temperatureLoopTimings.endTiming(
                         TemperatureLoopTimings.TimingTask.STRESS_LOOP);
+                convergence.recordStop(stopReason);
+                if (!isStressExact) {
+                    // Temperatures end on an exact stress
+                    stress = calculateStress(
+                            preX, config.targetDimension, tCur, distances,
+                            weights, INV_SUM_OF_SQUARE);
+                }
 
                 --itrNum;
                 if (itrNum >= 0 && !(itrNum % 10 == 0) && !(itrNum >=
@@ -309,16 +618,57 @@ public class ProgramWorker {
                         String.format(
                                 "End of loop %d Total Iterations %d Avg CG " +
                                         "count %.5g" +
-                                        " Stress %.5g",
+                                        " Stress %.5g Stopped by %s",
                                 loopNum, (itrNum + 1),
                                 (cgCount.getValue() * 1.0 / (itrNum + 1)),
-                                stress));
+                                stress, stopReason));
+                temperatureTimer.stop();
+                long temperatureMillis =
+                        temperatureTimer.elapsed(TimeUnit.MILLISECONDS);
+                if (isDiagonalUpdate) {
+                    diagonalIterations += itrNum + 1;
+                    diagonalMillis += temperatureMillis;
+                } else {
+                    solveMillis += temperatureMillis;
+                }
+                utils.printMessage(
+                        String.format(
+                                "  %s updates Time %d ms Stress %.5g",
+                                isDiagonalUpdate ? "Diagonal" : "Solved",
+                                temperatureMillis, stress));
 
                 if (tCur == 0)
                     break;
-                tCur *= config.alpha;
-                if (tCur < tMin)
+                utils.printMessage("  Cooling " + cooling.update(itrNum + 1,
+                        temperatureStartStress, stress));
+                double coolingAlpha = cooling.getAlpha();
+                boolean isFinalTemperature = false;
+                if (deadline.isSet()) {
+                    // Threads and processes must take the same decisions,
+                    // so all use the times of the first thread
+                    double elapsedMillis = sumOverThreadsAndProcs(
+                            isRootThread() ? mainTimer.elapsed(
+                                    TimeUnit.MILLISECONDS) : 0.0);
+                    double loopMillis = sumOverThreadsAndProcs(
+                            isRootThread() ? loopTimer.elapsed(
+                                    TimeUnit.MILLISECONDS) : 0.0);
+                    utils.printMessage("  Deadline " + deadline.plan(
+                            elapsedMillis,
+                            loopMillis / smacofRealIterations,
+                            smacofRealIterations * 1.0 / (loopNum + 1),
+                            tCur, coolingAlpha));
+                    coolingAlpha = deadline.getAlpha();
+                    isFinalTemperature = deadline.isFinalTemperature();
+                    iterationCap = deadline.getIterationCap();
+                    cgIterLimit = deadline.getCgIterLimit();
+                }
+                tCur *= coolingAlpha;
+                if (tCur < tMin || isFinalTemperature)
                     tCur = 0;
+                if (isCoarsePhase &&
+                        tCur < config.multilevelTemperature * tMax) {
+                    leaveCoarsePhase(!hasMissingDistances);
+                }
                 ++loopNum;
 
                 /* Note - quick way to test programs without running full
@@ -371,11 +721,134 @@ public class ProgramWorker {
                             outRealCGIterations.getValue(),
                             (outRealCGIterations.getValue() * 1.0) /
                                     smacofRealIterations));
+            if (diagonalIterations > 0) {
+                utils.printMessage(
+                        String.format(
+                                "  Diagonal Update Iterations: %d Time: %d ms" +
+                                        " Solved Update Iterations: %d " +
+                                        "Time: %d ms",
+                                diagonalIterations, diagonalMillis,
+                                smacofRealIterations - diagonalIterations,
+                                solveMillis));
+            }
+            utils.printMessage(
+                    "  Temperature Stop Reasons: " +
+                            convergence.getStopCounts());
             utils.printMessage("  Final Stress:\t" + finalStress);
             // TODO - fix print timings
             /*printTimings(totalTime, temperatureLoopTime);*/
             printTimingDistributions();
             threadComm.barrier();
+            if (distances != null) {
+                distances.close();
+            }
+        } catch (MPIException e) {
+            utils.printAndThrowRuntimeException(new RuntimeException(e));
+        } catch (InterruptedException | BrokenBarrierException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Places the rows of InterpolationDistanceFile, distances from new
+     * points to the points of a finished PointsFile, each by its own stress
+     * majorization with the mapped points fixed, and writes them to
+     * InterpolatedPointsFile. Rows are the new points, split over processes
+     * and threads, and are read in chunks of OutOfCoreBlockSize megabytes.
+     */
+    public void runInterpolation() throws IOException {
+        try {
+            if (Strings.isNullOrEmpty(config.interpolationDistanceFile)) {
+                utils.printAndThrowRuntimeException(
+                        "InterpolationPointCount requires an " +
+                                "InterpolationDistanceFile");
+            }
+            setup();
+            final int targetDimension = config.targetDimension;
+            final int numMapped = config.numberDataPoints;
+            double[] mapped = new double[numMapped * targetDimension];
+            readInitMapping(config.pointsFile, mapped, targetDimension, 1);
+            TransformationFunction function = loadDistanceFunction();
+
+            final int neighborCount = config.interpolationNeighbors > 0
+                    ? Math.min(config.interpolationNeighbors, numMapped)
+                    : numMapped;
+            final int threadRowCount = globalThreadRowRange.getLength();
+            long chunkBytes = (long) config.outOfCoreBlockSize << 20;
+            final int chunkRows = (int) Math.max(1, Math.min(threadRowCount,
+                    chunkBytes / ((long) Short.BYTES * numMapped)));
+            short[] chunk = new short[chunkRows * numMapped];
+            int[] columns = new int[neighborCount];
+            short[] neighborDistances = new short[neighborCount];
+            double[] neighborWeights = new double[neighborCount];
+            double[] threadRows = new double[threadRowCount * targetDimension];
+            double residual = 0.0;
+            double sumOfSquare = 0.0;
+            for (int chunkStart = 0; chunkStart < threadRowCount;
+                 chunkStart += chunkRows) {
+                int rows = Math.min(chunkRows, threadRowCount - chunkStart);
+                int globalStart = globalThreadRowRange.getStartIndex() +
+                        chunkStart;
+                readRowRange(config.interpolationDistanceFile,
+                        new Range(globalStart, globalStart + rows - 1),
+                        numMapped, 1, function, chunk);
+                for (int row = 0; row < rows; ++row) {
+                    int rowOffset = row * numMapped;
+                    int count = 0;
+                    for (int col = 0; col < numMapped; ++col) {
+                        short d = chunk[rowOffset + col];
+                        if (d < 0) continue;
+                        count = DistanceRows.insertNearest(columns,
+                                neighborDistances, neighborWeights, 0, count,
+                                neighborCount, col, d, 1.0);
+                    }
+                    int outOffset = (chunkStart + row) * targetDimension;
+                    if (count == 0) {
+                        // No distances at all, so leave the point at the
+                        // origin
+                        continue;
+                    }
+                    MultilevelSample.interpolatePoint(mapped,
+                            targetDimension, columns, neighborDistances,
+                            neighborWeights, 0, count, threadRows, outOffset);
+                    for (int n = 0; n < count; ++n) {
+                        double origD = neighborDistances[n] * INV_SHORT_MAX;
+                        int colOffset = columns[n] * targetDimension;
+                        double dist = 0.0;
+                        for (int k = 0; k < targetDimension; ++k) {
+                            double e = threadRows[outOffset + k] -
+                                    mapped[colOffset + k];
+                            dist += e * e;
+                        }
+                        double e = origD - Math.sqrt(dist);
+                        residual += e * e;
+                        sumOfSquare += origD * origD;
+                    }
+                }
+            }
+
+            double[] placed = new double[config.interpolationPointCount *
+                    targetDimension];
+            gatherThreadRows(threadRows, placed);
+            residual = sumOverThreadsAndProcs(residual);
+            sumOfSquare = sumOverThreadsAndProcs(sumOfSquare);
+            if (threadId == 0) {
+                if (ParallelOps.worldProcRank == 0) {
+                    Utils.writeOutput(placed, targetDimension,
+                            config.interpolatedPointsFile);
+                }
+                mainTimer.stop();
+            }
+            utils.printMessage(String.format(
+                    "Interpolated %d points against %d neighbors each",
+                    config.interpolationPointCount, neighborCount));
+            utils.printMessage("  Interpolation Stress:\t" +
+                    residual / sumOfSquare);
+            long totalTime = mainTimer.elapsed(TimeUnit.MILLISECONDS);
+            utils.printMessage(
+                    String.format("  Total Time: %s (%d ms)",
+                            formatElapsedMillis(totalTime), totalTime));
+            threadComm.barrier();
         } catch (MPIException e) {
             utils.printAndThrowRuntimeException(new RuntimeException(e));
         } catch (InterruptedException | BrokenBarrierException e) {
@@ -400,6 +873,33 @@ public class ProgramWorker {
             System.arraycopy(tmp, 0, bcInternalTimings, 0, bcInternalTimings.length);
         }
 
+        StreamingDistanceBlocks streamingDistances =
+                distances instanceof StreamingDistanceBlocks
+                        ? (StreamingDistanceBlocks) distances
+                        : null;
+        double[] blockReadTimings = null;
+        double[] blockWaitTimings = null;
+        if (streamingDistances != null) {
+            threadComm.barrier();
+            blockReadTimings = new double[ParallelOps.threadCount];
+            System.arraycopy(threadComm.gatherDoublesOverThreads(threadId,
+                    sumMillis(streamingDistances.getReadNanos())), 0,
+                    blockReadTimings, 0, ParallelOps.threadCount);
+            threadComm.barrier();
+            blockWaitTimings = new double[ParallelOps.threadCount];
+            System.arraycopy(threadComm.gatherDoublesOverThreads(threadId,
+                    sumMillis(streamingDistances.getWaitNanos())), 0,
+                    blockWaitTimings, 0, ParallelOps.threadCount);
+            if (ParallelOps.worldProcsCount > 1 && threadId == 0) {
+                int length = ParallelOps.threadCount *
+                        ParallelOps.worldProcsCount;
+                blockReadTimings = Arrays.copyOf(
+                        ParallelOps.allGather(blockReadTimings), length);
+                blockWaitTimings = Arrays.copyOf(
+                        ParallelOps.allGather(blockWaitTimings), length);
+            }
+        }
+
         if (ParallelOps.worldProcRank == 0 && threadId == 0){
             try (BufferedWriter writer = Files.newBufferedWriter(
                     Paths.get(config.timingFile), StandardOpenOption.WRITE,
@@ -409,6 +909,26 @@ public class ProgramWorker {
                         bcInternalTimings, printWriter);
                 prettyPrintArray("MMInternal Timing Distribution",
                         mmInternalTimings, printWriter);
+                if (streamingDistances != null) {
+                    // Waiting close to reading means passes are I/O bound
+                    prettyPrintArray("OutOfCoreRead Timing Distribution",
+                            blockReadTimings, printWriter);
+                    prettyPrintArray("OutOfCoreWait Timing Distribution",
+                            blockWaitTimings, printWriter);
+                    int[] counts = streamingDistances.getReadCounts();
+                    long[] reads = streamingDistances.getReadNanos();
+                    long[] waits = streamingDistances.getWaitNanos();
+                    double[] blockReads = new double[counts.length];
+                    double[] blockWaits = new double[counts.length];
+                    for (int i = 0; i < counts.length; ++i) {
+                        blockReads[i] = reads[i] * 1e-6 / Math.max(1, counts[i]);
+                        blockWaits[i] = waits[i] * 1e-6 / Math.max(1, counts[i]);
+                    }
+                    prettyPrintArray("OutOfCore Average Read Per Block " +
+                            "(Thread 0)", blockReads, printWriter);
+                    prettyPrintArray("OutOfCore Average Wait Per Block " +
+                            "(Thread 0)", blockWaits, printWriter);
+                }
 
                 printWriter.flush();
                 printWriter.close();
@@ -420,6 +940,14 @@ public class ProgramWorker {
 
     }
 
+    private static double sumMillis(long[] nanos) {
+        long sum = 0;
+        for (long n : nanos) {
+            sum += n;
+        }
+        return sum * 1e-6;
+    }
+
     private static void prettyPrintArray(
             String title, double[] vals, PrintWriter printWriter) {
         String str;
@@ -434,17 +962,71 @@ public class ProgramWorker {
         // Allocating point arrays once for all
         final int numberDataPoints = config.numberDataPoints;
         final int targetDimension = config.targetDimension;
+        if (!"NONE".equals(config.preconditioner) &&
+                !"JACOBI".equals(config.preconditioner)) {
+            utils.printAndThrowRuntimeException(
+                    "Unknown Preconditioner " + config.preconditioner);
+        }
+        if (!"NONE".equals(config.acceleration) &&
+                !"NESTEROV".equals(config.acceleration)) {
+            utils.printAndThrowRuntimeException(
+                    "Unknown Acceleration " + config.acceleration);
+        }
 
         preX = new double[numberDataPoints * targetDimension];
         BC = new double[numberDataPoints * targetDimension];
         MMr = new double[numberDataPoints * targetDimension];
         MMAp = new double[numberDataPoints * targetDimension];
+        MMz = "JACOBI".equals(config.preconditioner)
+                ? new double[numberDataPoints * targetDimension]
+                : null;
         final int threadRowCount = ParallelOps.threadRowCounts[threadId];
-        threadPartialBofZ = new double[threadRowCount][ParallelOps
-                .globalColCount];
+        // Sparse kernels multiply BofZ without forming it
+        threadPartialBofZ = sparseDistances == null
+                ? new double[threadRowCount][ParallelOps.globalColCount]
+                : null;
         threadPartialMM = new double[threadRowCount
                 * config.targetDimension];
+        if (config.activeSetTolerance > 0) {
+            if (config.activeSetSweepInterval <= 0) {
+                utils.printAndThrowRuntimeException(
+                        "ActiveSetSweepInterval must be positive");
+            }
+            activeSetLastX = new double[threadRowCount * targetDimension];
+            activeSetBC = new double[threadRowCount * targetDimension];
+            frozenRows = new boolean[threadRowCount];
+        }
+        if (config.stressSamplesPerRow > 0 &&
+                config.exactStressInterval <= 0) {
+            utils.printAndThrowRuntimeException(
+                    "ExactStressInterval must be positive");
+        }
+        previousX = "NESTEROV".equals(config.acceleration)
+                ? new double[numberDataPoints * targetDimension]
+                : null;
+        if (config.isRowSlicedCG || config.isPipelinedCG ||
+                config.recycledBasisSize > 0) {
+            threadX = new double[threadRowCount * targetDimension];
+            threadR = new double[threadRowCount * targetDimension];
+            threadP = new double[threadRowCount * targetDimension];
+            threadZ = "JACOBI".equals(config.preconditioner)
+                    ? new double[threadRowCount * targetDimension]
+                    : null;
+        }
+        if (config.isPipelinedCG) {
+            threadW = new double[threadRowCount * targetDimension];
+            threadS = new double[threadRowCount * targetDimension];
+            threadAs = new double[threadRowCount * targetDimension];
+            if ("JACOBI".equals(config.preconditioner)) {
+                threadM = new double[threadRowCount * targetDimension];
+                threadQ = new double[threadRowCount * targetDimension];
+            }
+            pipelinedSums = new double[2];
+        }
         v = new double[threadRowCount];
+        rowWeights = weightMode != WeightMode.UNIT
+                ? new double[ParallelOps.globalColCount]
+                : null;
     }
 
     private void zeroOutArray(double[] a) {
@@ -457,17 +1039,6 @@ public class ProgramWorker {
         }
     }
 
-    private void changeZeroDistancesToPostiveMin(
-            short[] distances, double positiveMin) {
-        double tmpD;
-        for (int i = 0; i < distances.length; ++i) {
-            tmpD = distances[i] * INV_SHORT_MAX;
-            if (tmpD < positiveMin && tmpD >= 0.0) {
-                distances[i] = (short) (positiveMin * SHORT_MAX);
-            }
-        }
-    }
-
     private static long[] getTemperatureLoopTimeDistribution(
             long temperatureLoopTime) throws MPIException {
         LongBuffer mpiOnlyTimingBuffer = ParallelOps.mpiOnlyBuffer;
@@ -483,6 +1054,18 @@ public class ProgramWorker {
     private void readInitMapping(
             String initialPointsFile, double[] preX, int dimension)
             throws BrokenBarrierException, InterruptedException {
+        readInitMapping(initialPointsFile, preX, dimension, 0);
+    }
+
+    /**
+     * @param columnOffset number of leading columns to skip, 1 for the ID
+     *                     column of a points file this program wrote
+     * @return number of points read
+     */
+    private int readInitMapping(
+            String initialPointsFile, double[] preX, int dimension,
+            int columnOffset)
+            throws BrokenBarrierException, InterruptedException {
         if (threadId == 0) {
             try (BufferedReader br = Files
                     .newBufferedReader(Paths.get(initialPointsFile),
@@ -500,11 +1083,13 @@ public class ProgramWorker {
                     String[] splits = pattern.split(line.trim());
 
                     for (int i = 0; i < dimension; ++i) {
-                        preX[row + i] = Double.parseDouble(splits[i].trim());
+                        preX[row + i] = Double.parseDouble(
+                                splits[i + columnOffset].trim());
                     }
                     row += dimension;
 
                 }
+                refInt.setValue(row / dimension);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -512,6 +1097,8 @@ public class ProgramWorker {
         }
         threadComm.barrier();
         threadComm.bcastDoubleArrayOverThreads(threadId, preX, 0);
+        threadComm.bcastIntOverThreads(threadId, refInt, 0);
+        return refInt.getValue();
     }
 
     public static String formatElapsedMillis(long elapsed) {
@@ -571,32 +1158,124 @@ public class ProgramWorker {
         writer.close();
     }
 
+    /**
+     * Sets up V and whatever the update of each iteration needs from it for
+     * the current distances.
+     *
+     * @param isClosedFormAllowed whether the weights give V - W the
+     *                            diagonal minus rank one form
+     */
+    private void prepareSolver(boolean isClosedFormAllowed)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        generateV(distances, weights, v);
+        // With unit or simple weights and no missing distances V - W is
+        // a diagonal minus a rank one matrix, which has a closed form
+        // inverse
+        isClosedFormUpdate = (weightMode == WeightMode.UNIT ||
+                weightMode == WeightMode.SIMPLE) && isClosedFormAllowed;
+        preconditioner = null;
+        recycledSpace = null;
+        if (isClosedFormUpdate) {
+            utils.printMessage(
+                    "\nUsing closed form updates instead of CG");
+        } else if ("JACOBI".equals(config.preconditioner)) {
+            preconditioner = generateJacobiPreconditioner(v);
+        }
+        if (!isClosedFormUpdate && config.recycledBasisSize > 0 &&
+                config.isPipelinedCG) {
+            utils.printMessage(
+                    "\nRecycled basis is not used with pipelined CG");
+        } else if (!isClosedFormUpdate && config.recycledBasisSize > 0) {
+            // Each thread keeps its rows of the basis, so it runs with the
+            // row sliced CG
+            recycledSpace = new RecycledKrylovSpace(
+                    config.recycledBasisSize,
+                    ParallelOps.threadRowCounts[threadId],
+                    this::sumOverThreadsAndProcs);
+        }
+    }
+
+    /**
+     * Switches to the pairs among the sampled points, normalizing stress by
+     * their sum of squares. The other points have no pairs and wait for
+     * {@link #leaveCoarsePhase(boolean)} to place them.
+     */
+    private void enterCoarsePhase()
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        fineSparseDistances = sparseDistances;
+        fineSampledStress = sampledStress;
+        fineInvSumOfSquare = INV_SUM_OF_SQUARE;
+        sparseDistances = multilevelSample.getCoarseDistances();
+        sampledStress = null;
+        isCoarsePhase = true;
+        // Pairs among sampled points don't keep the rank one form
+        prepareSolver(false);
+        // With unit normalization this is the raw sum of squares of the
+        // coarse pairs
+        double[] origin = new double[preX.length];
+        INV_SUM_OF_SQUARE = 1.0 / calculateStress(origin,
+                config.targetDimension, 0.0, distances, weights, 1.0);
+        utils.printMessage(String.format(
+                "\nCoarse phase on %d sampled points",
+                multilevelSample.getSampleSize()));
+    }
+
+    /**
+     * Interpolates the points left out of the coarse phase against their
+     * nearest sampled points and restores the full problem.
+     */
+    private void leaveCoarsePhase(boolean isClosedFormAllowed)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        multilevelSample.interpolate(preX, config.targetDimension,
+                threadPartialMM);
+        gatherThreadRows(threadPartialMM, preX);
+        sparseDistances = fineSparseDistances;
+        sampledStress = fineSampledStress;
+        INV_SUM_OF_SQUARE = fineInvSumOfSquare;
+        isCoarsePhase = false;
+        prepareSolver(isClosedFormAllowed);
+        utils.printMessage("\nInterpolated the points outside the sample");
+    }
+
     private void generateV(
-            short[] distances, WeightsWrap1D weights, double[] v) {
+            DistanceBlocks distances, WeightsWrap1D weights, double[] v) {
+        if (sparseDistances != null) {
+            sparseDistances.generateV(v);
+            return;
+        }
         zeroOutArray(v);
-        int threadRowCount = ParallelOps.threadRowCounts[threadId];
 
         int rowOffset = ParallelOps.threadRowStartOffsets[threadId] +
                 ParallelOps.procRowStartOffset;
-        for (int threadLocalRow = 0; threadLocalRow < threadRowCount;
-             ++threadLocalRow) {
-            int globalRow = threadLocalRow + rowOffset;
-            for (int globalCol = 0; globalCol < ParallelOps.globalColCount;
-                 ++globalCol) {
-                if (globalRow == globalCol) continue;
-
-                double origD = distances[threadLocalRow * ParallelOps
-                        .globalColCount + globalCol] * INV_SHORT_MAX;
-                double weight = weights.getWeight(threadLocalRow, globalCol);
-//                double weight = 1.0;
-
-                if (origD < 0 || weight == 0) {
-                    continue;
-                }
+        final int globalColCount = ParallelOps.globalColCount;
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            short[] blockDistances = distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + distances.getBlockRowCount(block);
+            WeightsWrap1D blockWeights = distances.getWeights(block, weights);
+            int weightRowOffset = distances.getWeightRowOffset(block);
+            for (int threadLocalRow = blockStartRow;
+                 threadLocalRow < blockEndRow; ++threadLocalRow) {
+                int globalRow = threadLocalRow + rowOffset;
+                int blockRowOffset =
+                        (threadLocalRow - blockStartRow) * globalColCount;
+                for (int globalCol = 0; globalCol < globalColCount;
+                     ++globalCol) {
+                    if (globalRow == globalCol) continue;
+
+                    double origD = blockDistances[blockRowOffset + globalCol]
+                            * INV_SHORT_MAX;
+                    double weight = blockWeights.getWeight(
+                            threadLocalRow - weightRowOffset, globalCol);
+
+                    if (origD < 0 || weight == 0) {
+                        continue;
+                    }
 
-                v[threadLocalRow] += weight;
+                    v[threadLocalRow] += weight;
+                }
+                v[threadLocalRow] += 1;
             }
-            v[threadLocalRow] += 1;
         }
 
     }
@@ -635,10 +1314,17 @@ public class ProgramWorker {
                 MMr[iOffset + j] = BC[iOffset + j];
             }
         }
+        if (preconditioner != null) {
+            // Start from the preconditioned residual z = M^-1 r
+            applyPreconditioner(MMr, MMz);
+            System.arraycopy(MMz, 0, BC, 0, BC.length);
+        }
 
         int cgCount = 0;
         cgTimings.startTiming(CGTimings.TimingTask.INNER_PROD);
-        double rTr = innerProductCalculation(MMr);
+        double rTr = preconditioner != null
+                ? innerProductCalculation(MMr, MMz)
+                : innerProductCalculation(MMr);
         cgTimings.endTiming(CGTimings.TimingTask.INNER_PROD);
         // Adding relative value test for termination as suggested by Dr. Fox.
         double testEnd = rTr * cgThreshold;
@@ -687,16 +1373,23 @@ public class ProgramWorker {
 
             //calculate beta
             cgLoopTimings.startTiming(CGLoopTimings.TimingTask.INNER_PROD_R);
-            double rTr1 = innerProductCalculation(MMr);
+            double rTr1;
+            if (preconditioner != null) {
+                applyPreconditioner(MMr, MMz);
+                rTr1 = innerProductCalculation(MMr, MMz);
+            } else {
+                rTr1 = innerProductCalculation(MMr);
+            }
             cgLoopTimings.endTiming(CGLoopTimings.TimingTask.INNER_PROD_R);
             double beta = rTr1 / rTr;
             rTr = rTr1;
 
             //update pi to pi+1
+            double[] z = preconditioner != null ? MMz : MMr;
             for (int i = 0; i < numPoints; ++i) {
                 iOffset = i * targetDimension;
                 for (int j = 0; j < targetDimension; ++j) {
-                    BC[iOffset + j] = MMr[iOffset + j] + beta * BC[iOffset + j];
+                    BC[iOffset + j] = z[iOffset + j] + beta * BC[iOffset + j];
                 }
             }
 
@@ -705,121 +1398,559 @@ public class ProgramWorker {
         outCgCount.setValue(outCgCount.getValue() + cgCount);
     }
 
-    private void calculateMM(
-            double[] x, int targetDimension, int numPoints, WeightsWrap1D
-            weights,
-            int blockSize, double[] v, double[] outMM,
-            double[] internalPartialMM)
-            throws MPIException, BrokenBarrierException, InterruptedException {
-
-        mmTimings.startTiming(MMTimings.TimingTask.MM_INTERNAL);
-        calculateMMInternal(x, targetDimension, numPoints, weights,
-                blockSize, v, internalPartialMM);
-        mmTimings.endTiming(MMTimings.TimingTask.MM_INTERNAL);
-
-        mmTimings.startTiming(MMTimings.TimingTask.MM_MERGE);
-        threadComm
-                .collect2(0, internalPartialMM,
-                        threadLocalMmapXWriteBytes, threadId);
-        //threadComm.barrier();
-        mmTimings.endTiming(MMTimings.TimingTask.MM_MERGE);
-
-        if (ParallelOps.worldProcsCount > 1) {
-            if (threadId == 0) {
-                /*mmTimings.startTiming(MMTimings.TimingTask.COMM);
-                ParallelOps.allGather();
-                mmTimings.endTiming(MMTimings.TimingTask.COMM);*/
-
-                // Important barrier here - as we need to make sure writes
-                // are done to the mmap file
+    /**
+     * Solves (V - W) X = BC exactly when <code>w_ij = w_i * w_j</code> and
+     * no distance is missing, with unit weights as all w_i being one. Then
+     * V - W = D - ww^T with D_ii = w_i * sum(w) + 1, and by Sherman-Morrison
+     * X = D^-1 BC + D^-1 w (w^T D^-1 BC) / (1 - w^T D^-1 w).
+     * Every thread holds all of BC, so this needs no communication. For
+     * unit weights it reduces to X = (BC + 11^T BC) / (N + 1).
+     */
+    private void calculateClosedFormUpdate(
+            double[] BC, int targetDimension, int numPoints, double[] preX) {
+        double sumOfWeights = 0.0;
+        for (int i = 0; i < numPoints; ++i) {
+            sumOfWeights += simpleWeights == null ? 1.0 : simpleWeights[i];
+        }
 
-                // it's sufficient to wait on ParallelOps.mmapProcComm, but
-                // it's cleaner for timings
-                // if we wait on the whole world
-                ParallelOps.worldProcsComm.barrier();
+        // wTDinvBC = w^T D^-1 BC per dimension and wTDinvW = w^T D^-1 w
+        double[] wTDinvBC = new double[targetDimension];
+        double wTDinvW = 0.0;
+        double w, dInv;
+        int iOffset;
+        for (int i = 0; i < numPoints; ++i) {
+            w = simpleWeights == null ? 1.0 : simpleWeights[i];
+            dInv = 1.0 / (w * sumOfWeights + 1.0);
+            wTDinvW += w * w * dInv;
+            iOffset = i * targetDimension;
+            for (int j = 0; j < targetDimension; ++j) {
+                wTDinvBC[j] += w * dInv * BC[iOffset + j];
+            }
+        }
 
-                if (ParallelOps.isMmapLead) {
-                    //mmTimings.startTiming(MMTimings.TimingTask.COMM, 0);
-                    ParallelOps.partialXAllGather();
-                    //mmTimings.endTiming(MMTimings.TimingTask.COMM, 0);
-                }
-                // Each process in a memory group waits here.
-                // It's not necessary to wait for a process
-                // in another memory map group, hence the use of mmapProcComm.
-                // However it's cleaner for any timings to have everyone sync
-                // here,
-                // so will use worldProcsComm instead.
-                ParallelOps.worldProcsComm.barrier();
+        double scale = 1.0 / (1.0 - wTDinvW);
+        for (int i = 0; i < numPoints; ++i) {
+            w = simpleWeights == null ? 1.0 : simpleWeights[i];
+            dInv = 1.0 / (w * sumOfWeights + 1.0);
+            iOffset = i * targetDimension;
+            for (int j = 0; j < targetDimension; ++j) {
+                preX[iOffset + j] = dInv * (BC[iOffset + j] +
+                        w * wTDinvBC[j] * scale);
             }
-            threadComm.barrier();
         }
-        mmTimings.startTiming(MMTimings.TimingTask.MM_EXTRACT);
-        threadComm.copy2(ParallelOps.worldProcsCount > 1
-                        ? threadLocalFullXBytes
-                        : threadLocalMmapXWriteBytes, outMM,
-                ParallelOps.globalColCount * targetDimension, threadId);
-        //threadComm.barrier();
-        mmTimings.endTiming(MMTimings.TimingTask.MM_EXTRACT);
     }
 
-    private void calculateMMInternal(
-            double[] x, int targetDimension, int numPoints,
-            WeightsWrap1D weights, int blockSize, double[] v, double[] outMM) {
+    /**
+     * V is constant for the run, so the inverse of its diagonal, which is
+     * also the diagonal of V - W, is gathered from all threads once and
+     * laid out like the points to scale residuals elementwise.
+     */
+    private double[] generateJacobiPreconditioner(double[] v)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        final int targetDimension = config.targetDimension;
+        for (int i = 0; i < v.length; ++i) {
+            Arrays.fill(threadPartialMM, i * targetDimension,
+                    (i + 1) * targetDimension, 1.0 / v[i]);
+        }
+        double[] inverseDiagonal =
+                new double[config.numberDataPoints * targetDimension];
+        gatherThreadRows(threadPartialMM, inverseDiagonal);
+        return inverseDiagonal;
+    }
 
-        MatrixUtils.matrixMultiplyWithThreadOffset(weights, v, x,
-                globalThreadRowRange.getLength(), targetDimension, numPoints,
-                blockSize, 0, globalThreadRowRange.getStartIndex(), outMM);
+    /**
+     * Moves the points to Y = X + beta (X - X_prev), the point the next
+     * SMACOF update starts from under Nesterov momentum, and keeps X as
+     * the previous points. Every thread holds all points, so this needs no
+     * communication.
+     */
+    private static void extrapolatePoints(
+            double[] preX, double[] previousX, double beta) {
+        for (int i = 0; i < preX.length; ++i) {
+            double x = preX[i];
+            preX[i] = x + beta * (x - previousX[i]);
+            previousX[i] = x;
+        }
     }
 
+    /**
+     * Replaces the V^+ solve with one Jacobi sweep from the current points,
+     * X = D^-1 (B(Z) Z + W Z), where D is the diagonal of V and W its off
+     * diagonal weights, written as Z + D^-1 (B(Z) Z - (V - W) Z). It costs
+     * one MM instead of a full CG solve, and since each v_i exceeds the sum
+     * of its row's weights by one the sweep is a contraction. Each thread
+     * updates its rows, which are then gathered.
+     */
+    private void calculateDiagonalUpdate(
+            double[] preX, int targetDimension, int numPoints, double[] BC,
+            WeightsWrap1D weights, int blockSize, double[] v,
+            double[] threadPartialMM)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        zeroOutArray(threadPartialMM);
+        cgTimings.startTiming(CGTimings.TimingTask.MM);
+        calculateMMInternal(preX, targetDimension, numPoints, weights,
+                blockSize, v, threadPartialMM);
+        cgTimings.endTiming(CGTimings.TimingTask.MM);
 
-    private static double innerProductCalculation(double[] a, double[] b) {
-        double sum = 0;
-        if (a.length > 0) {
-            for (int i = 0; i < a.length; ++i) {
-                sum += a[i] * b[i];
+        final int offset =
+                globalThreadRowRange.getStartIndex() * targetDimension;
+        final int threadRowCount = globalThreadRowRange.getLength();
+        for (int i = 0; i < threadRowCount; ++i) {
+            double invV = 1.0 / v[i];
+            int iOffset = i * targetDimension;
+            for (int k = 0; k < targetDimension; ++k) {
+                int index = iOffset + k;
+                threadPartialMM[index] = preX[offset + index] +
+                        invV * (BC[offset + index] - threadPartialMM[index]);
             }
         }
-        return sum;
+        gatherThreadRows(threadPartialMM, preX);
     }
 
-    private static double innerProductCalculation(double[] a) {
-        double sum = 0.0;
-        if (a.length > 0) {
-            for (double anA : a) {
-                sum += anA * anA;
-            }
+    /**
+     * A gradient step of the stress on each thread row, estimated from one
+     * random column in each of StochasticColumns equal strata of the row and
+     * scaled by the stratum size so it is unbiased. The step is divided by
+     * the diagonal of V, v_i = sum_j w_ij + 1. The gradient has no part for
+     * the one, so a step of one with every column would be the diagonal
+     * update plus z_i / v_i, keeping that much more of the old point. Only
+     * the sampled pairs are touched, no BC or MM.
+     * With NearestNeighbors the neighbors of a row add their exact terms
+     * and the strata sample only the columns outside them.
+     */
+    private void calculateStochasticUpdate(
+            double[] preX, int targetDimension, double tCur,
+            DistanceBlocks distances, WeightsWrap1D weights, double[] v,
+            double step, double[] threadPartialMM)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        double diff = 0.0;
+        if (tCur > 10E-10) {
+            diff = Math.sqrt(2.0 * targetDimension) * tCur;
         }
-        return sum;
-    }
 
-    private void calculateBC(
-            double[] preX, int targetDimension, double tCur, short[] distances,
-            WeightsWrap1D weights, int blockSize, double[] BC,
-            double[][] threadPartialBCInternalBofZ,
-            double[] threadPartialBCInternalMM)
-            throws MPIException, InterruptedException, BrokenBarrierException {
+        final int globalColCount = ParallelOps.globalColCount;
+        final int globalRowOffset = globalThreadRowRange.getStartIndex();
+        final int strata = Math.min(config.stochasticColumns, globalColCount);
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            short[] blockDistances = distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + distances.getBlockRowCount(block);
+            WeightsWrap1D blockWeights = distances.getWeights(block, weights);
+            int weightRowOffset = distances.getWeightRowOffset(block);
+            for (int threadLocalRow = blockStartRow;
+                 threadLocalRow < blockEndRow; ++threadLocalRow) {
+                int globalRow = threadLocalRow + globalRowOffset;
+                int blockRowOffset =
+                        (threadLocalRow - blockStartRow) * globalColCount;
+                int iOffset = globalRow * targetDimension;
+                int outOffset = threadLocalRow * targetDimension;
+                for (int k = 0; k < targetDimension; ++k) {
+                    threadPartialMM[outOffset + k] = 0.0;
+                }
+                if (nearestNeighbors != null) {
+                    nearestNeighbors.addNearGradient(threadLocalRow,
+                            globalRow, preX, targetDimension, diff,
+                            threadPartialMM, outOffset);
+                }
+                for (int s = 0; s < strata; ++s) {
+                    int start = (int) ((long) s * globalColCount / strata);
+                    int end = (int) ((long) (s + 1) * globalColCount / strata);
+                    int globalCol = start + stochasticRandom.nextInt(
+                            end - start);
+                    if (globalCol == globalRow) continue;
+                    if (nearestNeighbors != null &&
+                            nearestNeighbors.isNeighbor(globalCol)) {
+                        continue;
+                    }
 
-        bcTimings.startTiming(BCTimings.TimingTask.BC_INTERNAL);
-        calculateBCInternal(
-                preX, targetDimension, tCur, distances, weights, blockSize,
-                threadPartialBCInternalBofZ, threadPartialBCInternalMM);
-        bcTimings.endTiming(
-                BCTimings.TimingTask.BC_INTERNAL);
+                    double origD = blockDistances[blockRowOffset + globalCol]
+                            * INV_SHORT_MAX;
+                    if (origD < 0) continue;
+                    double weight = blockWeights.getWeight(
+                            threadLocalRow - weightRowOffset, globalCol);
+                    if (weight == 0) continue;
+
+                    double dist = calculateEuclideanDist(preX, globalRow,
+                            globalCol, targetDimension);
+                    // w_ij (1 - delta_ij / d_ij), with the BofZ term dropped
+                    // where BofZ is zero
+                    double scale = (end - start) * weight *
+                            (dist >= 1.0E-10 && diff < origD
+                                    ? 1.0 - (origD - diff) / dist
+                                    : 1.0);
+                    int jOffset = globalCol * targetDimension;
+                    for (int k = 0; k < targetDimension; ++k) {
+                        threadPartialMM[outOffset + k] += scale *
+                                (preX[iOffset + k] - preX[jOffset + k]);
+                    }
+                }
+                if (nearestNeighbors != null) {
+                    nearestNeighbors.unmark(threadLocalRow);
+                }
+                double stepOverV = step / v[threadLocalRow];
+                for (int k = 0; k < targetDimension; ++k) {
+                    threadPartialMM[outOffset + k] = preX[iOffset + k] -
+                            stepOverV * threadPartialMM[outOffset + k];
+                }
+            }
+        }
+        gatherThreadRows(threadPartialMM, preX);
+    }
 
-        bcTimings.startTiming(BCTimings.TimingTask.BC_MERGE);
-        //System.out.println(threadId);
-        threadComm.collect2(0,
-                threadPartialBCInternalMM, threadLocalMmapXWriteBytes, threadId);
-        bcTimings.endTiming(BCTimings.TimingTask.BC_MERGE);
+    /**
+     * CG where each thread keeps only its rows of x, r, Ap and p. The MM
+     * leaves Ap as thread rows, so only p is gathered for the next MM, and
+     * inner products are summed over threads and processes instead of
+     * being computed redundantly over full vectors on every thread. X is
+     * gathered once at the end.
+     */
+    private void calculateRowSlicedConjugateGradient(
+            double[] preX, int targetDimension, int numPoints, double[] BC,
+            int cgIter, double cgThreshold, RefObj<Integer> outCgCount,
+            RefObj<Integer> outRealCGIterations, WeightsWrap1D weights,
+            int blockSize, double[] v, double[] threadPartialMM)
+            throws MPIException, BrokenBarrierException, InterruptedException {
 
-        if (ParallelOps.worldProcsCount > 1) {
-            if (threadId == 0) {
-                /*bcTimings.startTiming(BCTimings.TimingTask.COMM);
-                ParallelOps.allGather();
-                bcTimings.endTiming(BCTimings.TimingTask.COMM);*/
+        final int length = threadX.length;
+        final int offset =
+                globalThreadRowRange.getStartIndex() * targetDimension;
+        System.arraycopy(preX, offset, threadX, 0, length);
 
-                // Important barrier here - as we need to make sure writes
-                // are done to the mmap file
+        zeroOutArray(threadPartialMM);
+        cgTimings.startTiming(CGTimings.TimingTask.MM);
+        calculateMMInternal(preX, targetDimension, numPoints, weights,
+                blockSize, v, threadPartialMM);
+        cgTimings.endTiming(CGTimings.TimingTask.MM);
+
+        for (int i = 0; i < length; ++i) {
+            threadR[i] = BC[offset + i] - threadPartialMM[i];
+        }
+        if (recycledSpace != null) {
+            // Solve exactly in the recycled space, then keep the search
+            // directions A orthogonal to it
+            recycledSpace.deflateInitialGuess(threadX, threadR,
+                    targetDimension);
+        }
+        double[] z = threadR;
+        if (preconditioner != null) {
+            for (int i = 0; i < length; ++i) {
+                threadZ[i] = preconditioner[offset + i] * threadR[i];
+            }
+            z = threadZ;
+        }
+        System.arraycopy(z, 0, threadP, 0, length);
+        if (recycledSpace != null) {
+            recycledSpace.project(z, threadP, targetDimension);
+        }
+
+        int cgCount = 0;
+        cgTimings.startTiming(CGTimings.TimingTask.INNER_PROD);
+        double rTr = sumOverThreadsAndProcs(
+                innerProductCalculation(threadR, z));
+        cgTimings.endTiming(CGTimings.TimingTask.INNER_PROD);
+        // Adding relative value test for termination as suggested by Dr. Fox.
+        double testEnd = rTr * cgThreshold;
+
+        cgTimings.startTiming(CGTimings.TimingTask.CG_LOOP);
+        while (cgCount < cgIter) {
+            cgCount++;
+            outRealCGIterations.setValue(outRealCGIterations.getValue() + 1);
+
+            // BC holds the full p from here on
+            zeroOutArray(threadPartialMM);
+            cgLoopTimings.startTiming(CGLoopTimings.TimingTask.MM);
+            gatherThreadRows(threadP, BC);
+            calculateMMInternal(BC, targetDimension, numPoints, weights,
+                    blockSize, v, threadPartialMM);
+            cgLoopTimings.endTiming(CGLoopTimings.TimingTask.MM);
+            if (recycledSpace != null) {
+                recycledSpace.collect(threadP, threadPartialMM,
+                        targetDimension);
+            }
+
+            cgLoopTimings.startTiming(CGLoopTimings.TimingTask.INNER_PROD_PAP);
+            double alpha = rTr / sumOverThreadsAndProcs(
+                    innerProductCalculation(threadP, threadPartialMM));
+            cgLoopTimings.endTiming(CGLoopTimings.TimingTask.INNER_PROD_PAP);
+
+            for (int i = 0; i < length; ++i) {
+                threadX[i] += alpha * threadP[i];
+            }
+
+            if (rTr < testEnd) {
+                break;
+            }
+
+            for (int i = 0; i < length; ++i) {
+                threadR[i] -= alpha * threadPartialMM[i];
+            }
+            if (preconditioner != null) {
+                for (int i = 0; i < length; ++i) {
+                    threadZ[i] = preconditioner[offset + i] * threadR[i];
+                }
+            }
+
+            cgLoopTimings.startTiming(CGLoopTimings.TimingTask.INNER_PROD_R);
+            double rTr1 = sumOverThreadsAndProcs(
+                    innerProductCalculation(threadR, z));
+            cgLoopTimings.endTiming(CGLoopTimings.TimingTask.INNER_PROD_R);
+            double beta = rTr1 / rTr;
+            rTr = rTr1;
+
+            for (int i = 0; i < length; ++i) {
+                threadP[i] = z[i] + beta * threadP[i];
+            }
+            if (recycledSpace != null) {
+                recycledSpace.project(z, threadP, targetDimension);
+            }
+        }
+        cgTimings.endTiming(CGTimings.TimingTask.CG_LOOP);
+        if (recycledSpace != null) {
+            recycledSpace.update();
+        }
+        gatherThreadRows(threadX, preX);
+        outCgCount.setValue(outCgCount.getValue() + cgCount);
+    }
+
+    /**
+     * Pipelined CG over thread rows, after Ghysels and Vanroose. Both inner
+     * products of an iteration are summed in one collective, which is
+     * started before the MM and finished after it, so the reduction over
+     * processes overlaps the gather and the MM instead of each of the two
+     * sums of {@link #calculateRowSlicedConjugateGradient} stalling the
+     * iteration. Recurrences for Ap and A(Mr) replace recomputing them, at
+     * the cost of one more MM per solve and slightly more rounding. In
+     * exact arithmetic the iterates and the termination test match the
+     * row sliced CG.
+     */
+    private void calculatePipelinedConjugateGradient(
+            double[] preX, int targetDimension, int numPoints, double[] BC,
+            int cgIter, double cgThreshold, RefObj<Integer> outCgCount,
+            RefObj<Integer> outRealCGIterations, WeightsWrap1D weights,
+            int blockSize, double[] v, double[] threadPartialMM)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+
+        final int length = threadX.length;
+        final int offset =
+                globalThreadRowRange.getStartIndex() * targetDimension;
+        System.arraycopy(preX, offset, threadX, 0, length);
+
+        zeroOutArray(threadPartialMM);
+        cgTimings.startTiming(CGTimings.TimingTask.MM);
+        calculateMMInternal(preX, targetDimension, numPoints, weights,
+                blockSize, v, threadPartialMM);
+        cgTimings.endTiming(CGTimings.TimingTask.MM);
+
+        for (int i = 0; i < length; ++i) {
+            threadR[i] = BC[offset + i] - threadPartialMM[i];
+        }
+        // Without a preconditioner u is r, m is w and q is s
+        double[] u = threadR;
+        double[] m = threadW;
+        double[] q = threadS;
+        if (preconditioner != null) {
+            for (int i = 0; i < length; ++i) {
+                threadZ[i] = preconditioner[offset + i] * threadR[i];
+            }
+            u = threadZ;
+            m = threadM;
+            q = threadQ;
+        }
+
+        // BC holds the full u, and then the full m, from here on
+        zeroOutArray(threadW);
+        cgTimings.startTiming(CGTimings.TimingTask.MM);
+        gatherThreadRows(u, BC);
+        calculateMMInternal(BC, targetDimension, numPoints, weights,
+                blockSize, v, threadW);
+        cgTimings.endTiming(CGTimings.TimingTask.MM);
+
+        zeroOutArray(threadP);
+        zeroOutArray(threadS);
+        zeroOutArray(threadAs);
+        if (q != threadS) {
+            zeroOutArray(q);
+        }
+
+        double gammaNext = innerProductCalculation(threadR, u);
+        double deltaNext = innerProductCalculation(threadW, u);
+        double gammaOld = 0.0;
+        double alphaOld = 0.0;
+        double testEnd = 0.0;
+
+        int cgCount = 0;
+        cgTimings.startTiming(CGTimings.TimingTask.CG_LOOP);
+        while (cgCount < cgIter) {
+            cgCount++;
+            outRealCGIterations.setValue(outRealCGIterations.getValue() + 1);
+
+            pipelinedSums[0] = gammaNext;
+            pipelinedSums[1] = deltaNext;
+            startSumOverThreadsAndProcs(pipelinedSums);
+
+            if (preconditioner != null) {
+                for (int i = 0; i < length; ++i) {
+                    threadM[i] = preconditioner[offset + i] * threadW[i];
+                }
+            }
+            zeroOutArray(threadPartialMM);
+            cgLoopTimings.startTiming(CGLoopTimings.TimingTask.MM);
+            gatherThreadRows(m, BC);
+            calculateMMInternal(BC, targetDimension, numPoints, weights,
+                    blockSize, v, threadPartialMM);
+            cgLoopTimings.endTiming(CGLoopTimings.TimingTask.MM);
+
+            cgLoopTimings.startTiming(CGLoopTimings.TimingTask.INNER_PROD_R);
+            finishSumOverThreadsAndProcs(pipelinedSums);
+            cgLoopTimings.endTiming(CGLoopTimings.TimingTask.INNER_PROD_R);
+            double gamma = pipelinedSums[0];
+            double delta = pipelinedSums[1];
+
+            double alpha;
+            double beta;
+            if (cgCount == 1) {
+                // Adding relative value test for termination as suggested
+                // by Dr. Fox.
+                testEnd = gamma * cgThreshold;
+                beta = 0.0;
+                alpha = gamma / delta;
+            } else {
+                beta = gamma / gammaOld;
+                alpha = gamma / (delta - beta * gamma / alphaOld);
+            }
+
+            gammaNext = 0.0;
+            deltaNext = 0.0;
+            for (int i = 0; i < length; ++i) {
+                threadAs[i] = threadPartialMM[i] + beta * threadAs[i];
+                if (q != threadS) {
+                    q[i] = m[i] + beta * q[i];
+                }
+                threadS[i] = threadW[i] + beta * threadS[i];
+                threadP[i] = u[i] + beta * threadP[i];
+                threadX[i] += alpha * threadP[i];
+                threadR[i] -= alpha * threadS[i];
+                if (u != threadR) {
+                    u[i] -= alpha * q[i];
+                }
+                threadW[i] -= alpha * threadAs[i];
+                gammaNext += threadR[i] * u[i];
+                deltaNext += threadW[i] * u[i];
+            }
+
+            if (gamma < testEnd) {
+                break;
+            }
+            gammaOld = gamma;
+            alphaOld = alpha;
+        }
+        cgTimings.endTiming(CGTimings.TimingTask.CG_LOOP);
+        gatherThreadRows(threadX, preX);
+        outCgCount.setValue(outCgCount.getValue() + cgCount);
+    }
+
+    /**
+     * Normalized stress estimated from the sample, the estimated decrease
+     * since the last estimate, and the standard error of that decrease
+     */
+    private double[] estimateStress(
+            double[] preX, int targetDimension, double tCur)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        double[] estimate = sampledStress.evaluate(preX, targetDimension,
+                tCur);
+        return new double[]{
+                sumOverThreadsAndProcs(estimate[0]) * INV_SUM_OF_SQUARE,
+                sumOverThreadsAndProcs(estimate[1]) * INV_SUM_OF_SQUARE,
+                Math.sqrt(sumOverThreadsAndProcs(estimate[2])) *
+                        INV_SUM_OF_SQUARE};
+    }
+
+    private boolean isRootThread() {
+        return threadId == 0 && ParallelOps.worldProcRank == 0;
+    }
+
+    /**
+     * Sums a value over all threads and processes, the same way stress is
+     * reduced, and returns the total on every thread.
+     */
+    private double sumOverThreadsAndProcs(double value)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        refDouble.setValue(value);
+        threadComm.sumDoublesOverThreads(threadId, refDouble);
+        if (ParallelOps.worldProcsCount > 1 && threadId == 0) {
+            refDouble.setValue(ParallelOps.allReduce(refDouble.getValue()));
+        }
+        threadComm.bcastDoubleOverThreads(threadId, refDouble, 0);
+        return refDouble.getValue();
+    }
+
+    /**
+     * Sums an array over all threads and processes in place, with one
+     * collective however long the array
+     */
+    private void sumOverThreadsAndProcs(double[] values)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        threadComm.sumDoubleArrayOverThreads(threadId, values);
+        if (ParallelOps.worldProcsCount > 1 && threadId == 0) {
+            ParallelOps.allReduce(values);
+        }
+        threadComm.copyDoubleArrayFromThread(threadId, values, 0);
+    }
+
+    /**
+     * Sums an array over threads and starts summing it over processes, so
+     * work not needing the sum can overlap the collective. Values must not
+     * change until {@link #finishSumOverThreadsAndProcs(double[])}.
+     */
+    private void startSumOverThreadsAndProcs(double[] values)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        threadComm.sumDoubleArrayOverThreads(threadId, values);
+        if (ParallelOps.worldProcsCount > 1 && threadId == 0) {
+            ParallelOps.startAllReduce(values);
+        }
+    }
+
+    /**
+     * Waits for the sum started by
+     * {@link #startSumOverThreadsAndProcs(double[])} and returns it in
+     * values on every thread
+     */
+    private void finishSumOverThreadsAndProcs(double[] values)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        if (ParallelOps.worldProcsCount > 1 && threadId == 0) {
+            ParallelOps.finishAllReduce(values);
+        }
+        threadComm.copyDoubleArrayFromThread(threadId, values, 0);
+    }
+
+    private void applyPreconditioner(double[] r, double[] z) {
+        for (int i = 0; i < r.length; ++i) {
+            z[i] = preconditioner[i] * r[i];
+        }
+    }
+
+    /**
+     * Assembles every thread's rows of points into the full array on all
+     * threads.
+     */
+    private void gatherThreadRows(double[] threadRows, double[] out)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        mergeThreadRows(threadRows);
+        extractThreadRows(out);
+    }
+
+    /**
+     * Writes the thread rows to the shared memory map and, with more than
+     * one process, gathers the rows of all processes into it.
+     */
+    private void mergeThreadRows(double[] threadRows)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        threadComm.collect2(0, threadRows, threadLocalMmapXWriteBytes,
+                threadId);
+        if (ParallelOps.worldProcsCount > 1) {
+            if (threadId == 0) {
+                // Important barrier here - as we need to make sure writes
+                // are done to the mmap file
 
                 // it's sufficient to wait on ParallelOps.mmapProcComm, but
                 // it's cleaner for timings
@@ -827,53 +1958,389 @@ public class ProgramWorker {
                 ParallelOps.worldProcsComm.barrier();
 
                 if (ParallelOps.isMmapLead) {
-                    // bcTimings.startTiming(BCTimings.TimingTask.COMM);
                     ParallelOps.partialXAllGather();
-                    // bcTimings.endTiming(BCTimings.TimingTask.COMM, 0);
                 }
                 // Each process in a memory group waits here.
                 // It's not necessary to wait for a process
-                // in another memory map group, hence the use of
-                // mmapProcComm.
+                // in another memory map group, hence the use of mmapProcComm.
                 // However it's cleaner for any timings to have everyone sync
-                // here, so will use worldProcsComm instead.
+                // here,
+                // so will use worldProcsComm instead.
                 ParallelOps.worldProcsComm.barrier();
             }
             threadComm.barrier();
         }
-        bcTimings.startTiming(BCTimings.TimingTask.BC_EXTRACT);
+    }
+
+    /**
+     * Copies the rows merged by {@link #mergeThreadRows} into out
+     */
+    private void extractThreadRows(double[] out) {
         threadComm.copy2(ParallelOps.worldProcsCount > 1
                         ? threadLocalFullXBytes
-                        : threadLocalMmapXWriteBytes, BC,
-                ParallelOps.globalColCount * targetDimension, threadId);
-        //threadComm.barrier();
+                        : threadLocalMmapXWriteBytes, out,
+                ParallelOps.globalColCount * config.targetDimension,
+                threadId);
+    }
+
+    private void calculateMM(
+            double[] x, int targetDimension, int numPoints, WeightsWrap1D
+            weights,
+            int blockSize, double[] v, double[] outMM,
+            double[] internalPartialMM)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+
+        mmTimings.startTiming(MMTimings.TimingTask.MM_INTERNAL);
+        calculateMMInternal(x, targetDimension, numPoints, weights,
+                blockSize, v, internalPartialMM);
+        mmTimings.endTiming(MMTimings.TimingTask.MM_INTERNAL);
+
+        mmTimings.startTiming(MMTimings.TimingTask.MM_MERGE);
+        mergeThreadRows(internalPartialMM);
+        mmTimings.endTiming(MMTimings.TimingTask.MM_MERGE);
+
+        mmTimings.startTiming(MMTimings.TimingTask.MM_EXTRACT);
+        extractThreadRows(outMM);
+        mmTimings.endTiming(MMTimings.TimingTask.MM_EXTRACT);
+    }
+
+    private void calculateMMInternal(
+            double[] x, int targetDimension, int numPoints,
+            WeightsWrap1D weights, int blockSize, double[] v, double[] outMM) {
+
+        if (sparseDistances != null) {
+            sparseDistances.multiplyV(x, targetDimension, v, outMM);
+            return;
+        }
+        switch (weightMode) {
+            case UNIT:
+            case SIMPLE:
+                multiplyRankOneWeights(x, targetDimension, numPoints, v,
+                        outMM);
+                return;
+            case FULL:
+            case SAMMON:
+                multiplyRowWeights(x, targetDimension, v, outMM);
+                return;
+        }
+        if (!distances.hasBlockWeights()) {
+            MatrixUtils.matrixMultiplyWithThreadOffset(weights, v, x,
+                    globalThreadRowRange.getLength(), targetDimension,
+                    numPoints, blockSize, 0,
+                    globalThreadRowRange.getStartIndex(), outMM);
+            return;
+        }
+
+        // Weights are streamed with the distances, so multiply block by block
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockRowCount = distances.getBlockRowCount(block);
+            int length = blockRowCount * targetDimension;
+            if (blockMM == null || blockMM.length < length) {
+                blockMM = new double[length];
+                blockV = new double[blockRowCount];
+            }
+            System.arraycopy(v, blockStartRow, blockV, 0, blockRowCount);
+            MatrixUtils.matrixMultiplyWithThreadOffset(
+                    distances.getWeights(block, weights), blockV, x,
+                    blockRowCount, targetDimension, numPoints, blockSize, 0,
+                    globalThreadRowRange.getStartIndex() + blockStartRow,
+                    blockMM);
+            System.arraycopy(blockMM, 0, outMM,
+                    blockStartRow * targetDimension, length);
+        }
+    }
+
+
+    /**
+     * (V - W) x when <code>w_ij = w_i * w_j</code> for all i != j, with
+     * unit weights as the case of all w_i being one. The sum over j is
+     * then the same for every row, so it is computed once.
+     */
+    private void multiplyRankOneWeights(
+            double[] x, int targetDimension, int numPoints, double[] v,
+            double[] outMM) {
+        double[] sum = new double[targetDimension];
+        double w;
+        for (int j = 0; j < numPoints; ++j) {
+            w = simpleWeights == null ? 1.0 : simpleWeights[j];
+            for (int k = 0; k < targetDimension; ++k) {
+                sum[k] += w * x[j * targetDimension + k];
+            }
+        }
+
+        final int globalRowOffset = globalThreadRowRange.getStartIndex();
+        for (int i = 0; i < globalThreadRowRange.getLength(); ++i) {
+            int globalRow = i + globalRowOffset;
+            w = simpleWeights == null ? 1.0 : simpleWeights[globalRow];
+            for (int k = 0; k < targetDimension; ++k) {
+                double xi = x[globalRow * targetDimension + k];
+                outMM[i * targetDimension + k] =
+                        v[i] * xi - w * (sum[k] - w * xi);
+            }
+        }
+    }
+
+    /**
+     * (V - W) x with each row's weights formed once by
+     * {@link #fillRowWeights}
+     */
+    private void multiplyRowWeights(
+            double[] x, int targetDimension, double[] v, double[] outMM) {
+        final int globalColCount = ParallelOps.globalColCount;
+        final int globalRowOffset = globalThreadRowRange.getStartIndex();
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            short[] blockDistances = distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + distances.getBlockRowCount(block);
+            for (int threadLocalRow = blockStartRow;
+                 threadLocalRow < blockEndRow; ++threadLocalRow) {
+                int globalRow = threadLocalRow + globalRowOffset;
+                fillRowWeights(threadLocalRow, globalRow, blockDistances,
+                        (threadLocalRow - blockStartRow) * globalColCount,
+                        null, 0, rowWeights);
+                rowWeights[globalRow] = 0.0;
+                int outOffset = threadLocalRow * targetDimension;
+                for (int k = 0; k < targetDimension; ++k) {
+                    outMM[outOffset + k] = v[threadLocalRow] *
+                            x[globalRow * targetDimension + k];
+                }
+                for (int globalCol = 0; globalCol < globalColCount;
+                     ++globalCol) {
+                    double w = rowWeights[globalCol];
+                    if (w == 0) continue;
+                    int colOffset = globalCol * targetDimension;
+                    for (int k = 0; k < targetDimension; ++k) {
+                        outMM[outOffset + k] -= w * x[colOffset + k];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Weights of one row for the current weight mode
+     *
+     * @param threadLocalRow the row within this thread
+     * @param globalRow the global row
+     * @param blockDistances distances of the block holding the row
+     * @param blockRowOffset offset of the row in blockDistances
+     * @param blockWeights weights of the block, used only by the generic mode
+     * @param weightRow the row in blockWeights
+     * @param out weights of all global columns
+     */
+    private void fillRowWeights(
+            int threadLocalRow, int globalRow, short[] blockDistances,
+            int blockRowOffset, WeightsWrap1D blockWeights, int weightRow,
+            double[] out) {
+        final int globalColCount = ParallelOps.globalColCount;
+        switch (weightMode) {
+            case SIMPLE:
+                double wi = simpleWeights[globalRow];
+                for (int j = 0; j < globalColCount; ++j) {
+                    out[j] = wi * simpleWeights[j];
+                }
+                break;
+            case FULL:
+                int offset = threadLocalRow * globalColCount;
+                for (int j = 0; j < globalColCount; ++j) {
+                    out[j] = weightValues[offset + j] * INV_SHORT_MAX;
+                }
+                break;
+            case SAMMON:
+                short d;
+                for (int j = 0; j < globalColCount; ++j) {
+                    d = blockDistances[blockRowOffset + j];
+                    out[j] = sammonInverseDistances[d < 0 ? 0 : d];
+                }
+                break;
+            default:
+                for (int j = 0; j < globalColCount; ++j) {
+                    out[j] = blockWeights.getWeight(weightRow, j);
+                }
+        }
+    }
+
+    /**
+     * Sammon weights of unit weights for every quantized distance, where
+     * missing distances use the entry of zero like the lower bound does.
+     */
+    private static double[] generateSammonInverseDistances(double avgDist) {
+        double[] inverse = new double[Short.MAX_VALUE + 1];
+        double minDist = 0.001 * avgDist;
+        for (int i = 0; i < inverse.length; ++i) {
+            inverse[i] = 1.0 / Math.max(i * (1.0 / Short.MAX_VALUE), minDist);
+        }
+        return inverse;
+    }
+
+    private WeightMode selectWeightMode() {
+        boolean hasWeightFile = !Strings.isNullOrEmpty(config.weightMatrixFile);
+        if (config.isSammon) {
+            return hasWeightFile ? WeightMode.GENERIC : WeightMode.SAMMON;
+        }
+        if (!hasWeightFile) {
+            return WeightMode.UNIT;
+        }
+        if (config.isSimpleWeights) {
+            return simpleWeights != null && Strings.isNullOrEmpty(
+                    config.weightTransformationFunction)
+                    ? WeightMode.SIMPLE
+                    : WeightMode.GENERIC;
+        }
+        return weightValues != null ? WeightMode.FULL : WeightMode.GENERIC;
+    }
+
+    private static double innerProductCalculation(double[] a, double[] b) {
+        double sum = 0;
+        if (a.length > 0) {
+            for (int i = 0; i < a.length; ++i) {
+                sum += a[i] * b[i];
+            }
+        }
+        return sum;
+    }
+
+    private static double innerProductCalculation(double[] a) {
+        double sum = 0.0;
+        if (a.length > 0) {
+            for (double anA : a) {
+                sum += anA * anA;
+            }
+        }
+        return sum;
+    }
+
+    private void calculateBC(
+            double[] preX, int targetDimension, double tCur,
+            DistanceBlocks distances,
+            WeightsWrap1D weights, int blockSize, double[] BC,
+            double[][] threadPartialBCInternalBofZ,
+            double[] threadPartialBCInternalMM)
+            throws MPIException, InterruptedException, BrokenBarrierException {
+
+        bcTimings.startTiming(BCTimings.TimingTask.BC_INTERNAL);
+        calculateBCInternal(
+                preX, targetDimension, tCur, distances, weights, blockSize,
+                threadPartialBCInternalBofZ, threadPartialBCInternalMM);
+        bcTimings.endTiming(
+                BCTimings.TimingTask.BC_INTERNAL);
+
+        bcTimings.startTiming(BCTimings.TimingTask.BC_MERGE);
+        mergeThreadRows(threadPartialBCInternalMM);
+        bcTimings.endTiming(BCTimings.TimingTask.BC_MERGE);
+
+        bcTimings.startTiming(BCTimings.TimingTask.BC_EXTRACT);
+        extractThreadRows(BC);
         bcTimings.endTiming(BCTimings.TimingTask.BC_EXTRACT);
     }
 
     private void calculateBCInternal(
-            double[] preX, int targetDimension, double tCur, short[] distances,
+            double[] preX, int targetDimension, double tCur,
+            DistanceBlocks distances,
             WeightsWrap1D weights, int blockSize, double[][] internalBofZ,
             double[] outMM) {
 
-        bcInternalTimings.startTiming(BCInternalTimings.TimingTask.BOFZ);
-        calculateBofZ(preX, targetDimension, tCur,
-                distances, weights, internalBofZ);
-        bcInternalTimings.endTiming(BCInternalTimings.TimingTask.BOFZ);
+        boolean[] skipRows = updateActiveSet(preX, targetDimension);
+        if (sparseDistances != null) {
+            bcInternalTimings.startTiming(BCInternalTimings.TimingTask.MM);
+            sparseDistances.multiplyBofZ(preX, targetDimension, tCur, outMM,
+                    skipRows);
+            bcInternalTimings.endTiming(BCInternalTimings.TimingTask.MM);
+        } else {
+            bcInternalTimings.startTiming(BCInternalTimings.TimingTask.BOFZ);
+            calculateBofZ(preX, targetDimension, tCur,
+                    distances, weights, internalBofZ, skipRows);
+            bcInternalTimings.endTiming(BCInternalTimings.TimingTask.BOFZ);
+
+            // Next we can calculate the BofZ * preX.
+            bcInternalTimings.startTiming(BCInternalTimings.TimingTask.MM);
+            if (skipRows == null) {
+                MatrixUtils.matrixMultiply(internalBofZ, preX,
+                        globalThreadRowRange.getLength(), targetDimension,
+                        ParallelOps.globalColCount, blockSize, outMM);
+            } else {
+                multiplyActiveRows(internalBofZ, preX, targetDimension,
+                        skipRows, outMM);
+            }
+            bcInternalTimings.endTiming(BCInternalTimings.TimingTask.MM);
+        }
 
-        // Next we can calculate the BofZ * preX.
-        bcInternalTimings.startTiming(BCInternalTimings.TimingTask.MM);
-        MatrixUtils.matrixMultiply(internalBofZ, preX,
-                globalThreadRowRange.getLength(), targetDimension,
-                ParallelOps.globalColCount, blockSize, outMM);
-        bcInternalTimings.endTiming(BCInternalTimings.TimingTask.MM);
+        if (activeSetBC != null) {
+            // Frozen rows take their last BC, the others refresh it
+            for (int i = 0; i < frozenRows.length; ++i) {
+                int offset = i * targetDimension;
+                if (skipRows != null && skipRows[i]) {
+                    System.arraycopy(activeSetBC, offset, outMM, offset,
+                            targetDimension);
+                } else {
+                    System.arraycopy(outMM, offset, activeSetBC, offset,
+                            targetDimension);
+                }
+            }
+        }
     }
 
-    private void calculateBofZ(
-            double[] preX, int targetDimension, double tCur, short[]
-            distances, WeightsWrap1D weights,
-            double[][] outBofZ) {
+    /**
+     * Records how far each thread row's point moved since the last BC. On
+     * every ActiveSetSweepInterval-th call, starting with the first of each
+     * temperature, all rows are computed and those that moved less than
+     * ActiveSetTolerance are frozen until the next such sweep. A
+     * temperature that would stop after a partial sweep first runs one more
+     * iteration with a full sweep.
+     *
+     * @return the rows whose BC is reused, or null to compute all rows
+     */
+    private boolean[] updateActiveSet(double[] preX, int targetDimension) {
+        if (activeSetLastX == null) return null;
+
+        boolean isFullSweep =
+                activeSetIteration % config.activeSetSweepInterval == 0;
+        ++activeSetIteration;
+        isPartialSweep = !isFullSweep;
+        final int globalRowOffset = globalThreadRowRange.getStartIndex();
+        for (int i = 0; i < frozenRows.length; ++i) {
+            int offset = i * targetDimension;
+            int globalOffset = (i + globalRowOffset) * targetDimension;
+            double moved = 0.0;
+            for (int k = 0; k < targetDimension; ++k) {
+                double e = preX[globalOffset + k] - activeSetLastX[offset + k];
+                moved += e * e;
+                activeSetLastX[offset + k] = preX[globalOffset + k];
+            }
+            if (isFullSweep) {
+                frozenRows[i] = Math.sqrt(moved) < config.activeSetTolerance;
+            }
+        }
+        return isFullSweep ? null : frozenRows;
+    }
+
+    private static void multiplyActiveRows(
+            double[][] bofZ, double[] preX, int targetDimension,
+            boolean[] skipRows, double[] outMM) {
+        for (int i = 0; i < skipRows.length; ++i) {
+            if (skipRows[i]) continue;
+            double[] row = bofZ[i];
+            int outOffset = i * targetDimension;
+            for (int k = 0; k < targetDimension; ++k) {
+                outMM[outOffset + k] = 0.0;
+            }
+            for (int j = 0; j < row.length; ++j) {
+                double b = row[j];
+                if (b == 0.0) continue;
+                int xOffset = j * targetDimension;
+                for (int k = 0; k < targetDimension; ++k) {
+                    outMM[outOffset + k] += b * preX[xOffset + k];
+                }
+            }
+        }
+    }
 
-        int threadRowCount = globalThreadRowRange.getLength();
+    private void calculateBofZ(
+            double[] preX, int targetDimension, double tCur,
+            DistanceBlocks distances, WeightsWrap1D weights,
+            double[][] outBofZ, boolean[] skipRows) {
 
         double vBlockValue = -1;
 
@@ -887,47 +2354,83 @@ public class ProgramWorker {
 
         final int globalColCount = ParallelOps.globalColCount;
         final int globalRowOffset = globalThreadRowRange.getStartIndex();
-        int globalRow;
-        for (int threadLocalRow = 0; threadLocalRow < threadRowCount;
-             ++threadLocalRow) {
-            globalRow = threadLocalRow + globalRowOffset;
-            outBofZLocalRow = outBofZ[threadLocalRow];
-            outBofZLocalRow[globalRow] = 0;
-            for (int globalCol = 0; globalCol < ParallelOps.globalColCount;
-                 globalCol++) {
-                 /* B_ij = - w_ij * delta_ij / d_ij(Z), if (d_ij(Z) != 0) 0,
-				 * otherwise v_ij = - w_ij.
-				 *
-				 * Therefore, B_ij = v_ij * delta_ij / d_ij(Z). 0 (if d_ij
-				 * (Z) >=
-				 * small threshold) --> the actual meaning is (if d_ij(Z) == 0)
-				 * BofZ[i][j] = V[i][j] * deltaMat[i][j] / CalculateDistance
-				 * (ref
-				 * preX, i, j);*/
-
-                // this is for the i!=j case. For i==j case will be calculated
-                // separately (see above).
-                if (globalRow == globalCol) continue;
-
-
-                origD = distances[threadLocalRow * globalColCount +
-                        globalCol] * INV_SHORT_MAX;
-                weight = weights.getWeight(threadLocalRow, globalCol);
-//                weight = 1.0;
-
-                if (origD < 0 || weight == 0) {
+        int globalRow, blockRowOffset;
+        short[] blockDistances;
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            blockDistances = distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + distances.getBlockRowCount(block);
+            WeightsWrap1D blockWeights = distances.getWeights(block, weights);
+            int weightRowOffset = distances.getWeightRowOffset(block);
+            for (int threadLocalRow = blockStartRow;
+                 threadLocalRow < blockEndRow; ++threadLocalRow) {
+                if (skipRows != null && skipRows[threadLocalRow]) continue;
+                globalRow = threadLocalRow + globalRowOffset;
+                blockRowOffset =
+                        (threadLocalRow - blockStartRow) * globalColCount;
+                outBofZLocalRow = outBofZ[threadLocalRow];
+                outBofZLocalRow[globalRow] = 0;
+                if (weightMode == WeightMode.UNIT) {
+                    for (int globalCol = 0; globalCol < globalColCount;
+                         globalCol++) {
+                        if (globalRow == globalCol) continue;
+
+                        origD = blockDistances[blockRowOffset + globalCol]
+                                * INV_SHORT_MAX;
+                        if (origD < 0) continue;
+
+                        dist = calculateEuclideanDist(preX, globalRow,
+                                globalCol, targetDimension);
+                        if (dist >= 1.0E-10 && diff < origD) {
+                            outBofZLocalRow[globalCol] = (vBlockValue *
+                                    (origD - diff) / dist);
+                        } else {
+                            outBofZLocalRow[globalCol] = 0;
+                        }
+                        outBofZLocalRow[globalRow] -=
+                                outBofZLocalRow[globalCol];
+                    }
                     continue;
                 }
 
-                dist = calculateEuclideanDist(preX, globalRow, globalCol,
-                        targetDimension);
-                if (dist >= 1.0E-10 && diff < origD) {
-                    outBofZLocalRow[globalCol] = (weight * vBlockValue *
-                            (origD - diff) / dist);
-                } else {
-                    outBofZLocalRow[globalCol] = 0;
+                fillRowWeights(threadLocalRow, globalRow, blockDistances,
+                        blockRowOffset, blockWeights,
+                        threadLocalRow - weightRowOffset, rowWeights);
+                for (int globalCol = 0; globalCol < globalColCount;
+                     globalCol++) {
+                    /* B_ij = - w_ij * delta_ij / d_ij(Z), if (d_ij(Z) != 0) 0,
+                     * otherwise v_ij = - w_ij.
+                     *
+                     * Therefore, B_ij = v_ij * delta_ij / d_ij(Z). 0 (if d_ij
+                     * (Z) >=
+                     * small threshold) --> the actual meaning is (if d_ij(Z) == 0)
+                     * BofZ[i][j] = V[i][j] * deltaMat[i][j] / CalculateDistance
+                     * (ref
+                     * preX, i, j);*/
+
+                    // this is for the i!=j case. For i==j case will be calculated
+                    // separately (see above).
+                    if (globalRow == globalCol) continue;
+
+
+                    origD = blockDistances[blockRowOffset + globalCol]
+                            * INV_SHORT_MAX;
+                    weight = rowWeights[globalCol];
+
+                    if (origD < 0 || weight == 0) {
+                        continue;
+                    }
+
+                    dist = calculateEuclideanDist(preX, globalRow, globalCol,
+                            targetDimension);
+                    if (dist >= 1.0E-10 && diff < origD) {
+                        outBofZLocalRow[globalCol] = (weight * vBlockValue *
+                                (origD - diff) / dist);
+                    } else {
+                        outBofZLocalRow[globalCol] = 0;
+                    }
+                    outBofZLocalRow[globalRow] -= outBofZLocalRow[globalCol];
                 }
-                outBofZLocalRow[globalRow] -= outBofZLocalRow[globalCol];
             }
         }
     }
@@ -965,7 +2468,8 @@ public class ProgramWorker {
     }
 
     private double calculateStress(
-            double[] preX, int targetDimension, double tCur, short[] distances,
+            double[] preX, int targetDimension, double tCur,
+            DistanceBlocks distances,
             WeightsWrap1D weights, double invSumOfSquareDist)
             throws MPIException, BrokenBarrierException, InterruptedException {
 
@@ -1024,43 +2528,84 @@ public class ProgramWorker {
     }
 
     private double calculateStressInternal(
-            int threadIdx, double[] preX, int targetDim, double tCur, short[]
-            distances, WeightsWrap1D weights) {
+            int threadIdx, double[] preX, int targetDim, double tCur,
+            DistanceBlocks distances, WeightsWrap1D weights) {
 
         stressInternalTimings.startTiming(StressInternalTimings.TimingTask
                 .COMP, threadIdx);
+        if (sparseDistances != null) {
+            double sigma = sparseDistances.calculateStress(preX, targetDim,
+                    tCur);
+            stressInternalTimings.endTiming(StressInternalTimings.TimingTask
+                    .COMP, threadIdx);
+            return sigma;
+        }
         double sigma = 0.0;
         double diff = 0.0;
         if (tCur > 10E-10) {
             diff = Math.sqrt(2.0 * targetDim) * tCur;
         }
 
-        int threadRowCount = globalThreadRowRange.getLength();
         final int globalRowOffset = globalThreadRowRange.getStartIndex();
 
         int globalColCount = ParallelOps.globalColCount;
-        int globalRow;
+        int globalRow, blockRowOffset;
         double origD, weight, euclideanD;
         double heatD, tmpD;
-        for (int threadLocalRow = 0; threadLocalRow < threadRowCount;
-             ++threadLocalRow) {
-            globalRow = threadLocalRow + globalRowOffset;
-            for (int globalCol = 0; globalCol < globalColCount; globalCol++) {
-                origD = distances[threadLocalRow * globalColCount + globalCol]
-                        * INV_SHORT_MAX;
-                weight = weights.getWeight(threadLocalRow, globalCol);
-//                weight = 1.0;
-
-                if (origD < 0 || weight == 0) {
+        short[] blockDistances;
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            blockDistances = distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + distances.getBlockRowCount(block);
+            WeightsWrap1D blockWeights = distances.getWeights(block, weights);
+            int weightRowOffset = distances.getWeightRowOffset(block);
+            for (int threadLocalRow = blockStartRow;
+                 threadLocalRow < blockEndRow; ++threadLocalRow) {
+                globalRow = threadLocalRow + globalRowOffset;
+                blockRowOffset =
+                        (threadLocalRow - blockStartRow) * globalColCount;
+                if (weightMode == WeightMode.UNIT) {
+                    for (int globalCol = 0; globalCol < globalColCount;
+                         globalCol++) {
+                        origD = blockDistances[blockRowOffset + globalCol]
+                                * INV_SHORT_MAX;
+                        if (origD < 0) continue;
+
+                        euclideanD = globalRow != globalCol
+                                ? calculateEuclideanDist(preX, globalRow,
+                                globalCol, targetDim)
+                                : 0.0;
+
+                        tmpD = origD >= diff
+                                ? origD - diff - euclideanD
+                                : -euclideanD;
+                        sigma += tmpD * tmpD;
+                    }
                     continue;
                 }
 
-                euclideanD = globalRow != globalCol ? calculateEuclideanDist(
-                        preX, globalRow, globalCol, targetDim) : 0.0;
+                fillRowWeights(threadLocalRow, globalRow, blockDistances,
+                        blockRowOffset, blockWeights,
+                        threadLocalRow - weightRowOffset, rowWeights);
+                for (int globalCol = 0; globalCol < globalColCount;
+                     globalCol++) {
+                    origD = blockDistances[blockRowOffset + globalCol]
+                            * INV_SHORT_MAX;
+                    weight = rowWeights[globalCol];
+
+                    if (origD < 0 || weight == 0) {
+                        continue;
+                    }
+
+                    euclideanD = globalRow != globalCol
+                            ? calculateEuclideanDist(preX, globalRow,
+                            globalCol, targetDim)
+                            : 0.0;
 
-                heatD = origD - diff;
-                tmpD = origD >= diff ? heatD - euclideanD : -euclideanD;
-                sigma += weight * tmpD * tmpD;
+                    heatD = origD - diff;
+                    tmpD = origD >= diff ? heatD - euclideanD : -euclideanD;
+                    sigma += weight * tmpD * tmpD;
+                }
             }
         }
         stressInternalTimings.endTiming(StressInternalTimings.TimingTask
@@ -1134,12 +2679,27 @@ public class ProgramWorker {
     }
 
     private DoubleStatistics calculateStatistics(
-            short[] distances, WeightsWrap1D weights, RefObj<Integer>
+            DistanceBlocks distances, WeightsWrap1D weights, RefObj<Integer>
             missingDistCount)
             throws MPIException, BrokenBarrierException, InterruptedException {
 
-        DoubleStatistics distanceSummary =
-                calculateStatisticsInternal(distances, weights, refInt);
+        DoubleStatistics distanceSummary = calculateStatisticsInternal(
+                distances, weights, missingDistCount);
+        return reduceStatistics(distanceSummary, missingDistCount);
+    }
+
+    /**
+     * Combines thread local statistics and counts over all threads and
+     * processes
+     *
+     * @param distanceSummary thread local statistics
+     * @param count thread local count on entry, global count on return
+     * @return the global statistics
+     */
+    private DoubleStatistics reduceStatistics(
+            DoubleStatistics distanceSummary, RefObj<Integer> count)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        refInt.setValue(count.getValue());
         threadComm.sumDoubleStatisticsOverThreads(threadId, distanceSummary);
         threadComm.sumIntOverThreads(threadId, refInt);
 
@@ -1151,7 +2711,7 @@ public class ProgramWorker {
         threadComm.bcastDoubleStatisticsOverThreads(threadId,
                 distanceSummary, 0);
         threadComm.bcastIntOverThreads(threadId, refInt, 0);
-        missingDistCount.setValue(refInt.getValue());
+        count.setValue(refInt.getValue());
         return distanceSummary;
     }
 
@@ -1166,28 +2726,34 @@ public class ProgramWorker {
         }
     }
 
-    private void readDistancesAndWeights(boolean isSammon) {
-        TransformationFunction function;
-        if (!Strings.isNullOrEmpty(config.transformationFunction)) {
-            function = loadFunction(config.transformationFunction);
-        } else {
-            function = (config.distanceTransform != 1.0
-                    ? (d -> Math.pow(d, config.distanceTransform))
-                    : null);
-        }
+    private void readDistancesAndWeights(boolean isSammon)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        TransformationFunction function = loadDistanceFunction();
 
+        if (config.isOutOfCore) {
+            stageDistancesAndWeights(isSammon, function);
+            return;
+        }
+        if (config.repetitions > 1 &&
+                Strings.isNullOrEmpty(config.vectorFile)) {
+            readRepeatedDistancesAndWeights(isSammon, function);
+            return;
+        }
 
         int elementCount = globalThreadRowRange.getLength() * ParallelOps
                 .globalColCount;
-        distances = new short[elementCount];
-        if (config.repetitions == 1) {
-            BinaryReader1D.readRowRange(config.distanceMatrixFile,
-                    globalThreadRowRange, ParallelOps.globalColCount, byteOrder,
-                    true, function, distances);
+        short[] distances;
+        if (Strings.isNullOrEmpty(config.vectorFile)) {
+            distances = new short[elementCount];
+            readRowRange(config.distanceMatrixFile, globalThreadRowRange,
+                    function, distances);
+            this.distances = new ResidentDistanceBlocks(distances,
+                    globalThreadRowRange.getLength(),
+                    ParallelOps.globalColCount);
         } else {
-            BinaryReader1D.readRowRange(config.distanceMatrixFile,
-                    globalThreadRowRange, ParallelOps.globalColCount, byteOrder,
-                    true, function, config.repetitions, distances);
+            this.distances = createVectorDistances(function);
+            // Null unless tiles are cached, which Sammon weights require
+            distances = this.distances.getResidentDistances();
         }
 
         if (!Strings.isNullOrEmpty(config.weightMatrixFile)) {
@@ -1198,21 +2764,16 @@ public class ProgramWorker {
                     : null;
             if (!config.isSimpleWeights) {
                 w = new short[elementCount];
-                if (config.repetitions == 1) {
-                    BinaryReader1D.readRowRange(config.weightMatrixFile,
-                            globalThreadRowRange, ParallelOps.globalColCount,
-                            byteOrder, true, function, w);
-                } else {
-                    BinaryReader1D.readRowRange(config.weightMatrixFile,
-                            globalThreadRowRange, ParallelOps.globalColCount,
-                            byteOrder, true, function, config.repetitions, w);
-                }
+                readRowRange(config.weightMatrixFile, globalThreadRowRange,
+                        function, w);
+                weightValues = w;
                 weights = new WeightsWrap1D(
                         w, distances, isSammon, ParallelOps.globalColCount);
             } else {
                 double[] sw = null;
                 sw = BinaryReader2D.readSimpleFile(config.weightMatrixFile,
                         config.numberDataPoints);
+                simpleWeights = sw;
                 weights = new WeightsWrap1D(sw, globalThreadRowRange,
                         distances, isSammon, ParallelOps.globalColCount,
                         function);
@@ -1224,31 +2785,266 @@ public class ProgramWorker {
 
     }
 
+    private DistanceBlocks createVectorDistances(
+            TransformationFunction function)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        if (config.repetitions != 1) {
+            utils.printAndThrowRuntimeException(
+                    "Repetitions are not supported with a VectorFile");
+        }
+        VectorDistanceBlocks vectorDistances = new VectorDistanceBlocks(
+                Program.vectors, config.vectorDimension,
+                DistanceMetric.valueOf(config.distanceMetric),
+                globalThreadRowRange.getStartIndex(),
+                globalThreadRowRange.getLength(), ParallelOps.globalColCount,
+                function);
+
+        // The largest distance maps to one, like distances read from a file
+        DoubleStatistics maxDistance = new DoubleStatistics();
+        maxDistance.accept(vectorDistances.calculateMaxDistance());
+        maxDistance = reduceStatistics(maxDistance, new RefObj<>(0));
+        vectorDistances.setMaxDistance(maxDistance.getMax());
+        utils.printMessage("\nVector input with " + config.distanceMetric +
+                " distances, max distance=" + maxDistance.getMax());
+
+        if (config.isVectorTileCached) {
+            return new ResidentDistanceBlocks(vectorDistances.materialize(),
+                    globalThreadRowRange.getLength(),
+                    ParallelOps.globalColCount);
+        }
+        if (config.isSammon) {
+            utils.printAndThrowRuntimeException(
+                    "Sammon mapping with a VectorFile requires " +
+                    "IsVectorTileCached");
+        }
+        return vectorDistances;
+    }
+
+    /**
+     * Copies this thread's distances, and weights if they depend on the row,
+     * block by block to a scratch file, which is streamed back in every pass
+     * instead of keeping the rows in memory.
+     */
+    private void stageDistancesAndWeights(
+            boolean isSammon, TransformationFunction function) {
+        if (!Strings.isNullOrEmpty(config.vectorFile)) {
+            utils.printAndThrowRuntimeException(
+                    "IsOutOfCore is not supported with a VectorFile");
+        }
+
+        final int globalColCount = ParallelOps.globalColCount;
+        boolean hasWeightMatrix = hasWeightMatrix();
+        TransformationFunction weightFunction = loadWeightFunction();
+        double[] sw = readSimpleWeights();
+        simpleWeights = sw;
+        DistanceBlocks.WeightsFactory factory = createWeightsFactory(
+                isSammon, sw, weightFunction);
+
+        long blockBytes = (long) config.outOfCoreBlockSize << 20;
+        int rowsPerBlock = (int) Math.min(Integer.MAX_VALUE / 2 /
+                globalColCount, blockBytes / ((long) Short.BYTES *
+                globalColCount * (hasWeightMatrix ? 2 : 1)));
+        StreamingDistanceBlocks streamingDistances =
+                new StreamingDistanceBlocks(config.scratchDirectory,
+                        "damds_" + ParallelOps.worldProcRank + "_" +
+                                threadId + ".bin",
+                        globalThreadRowRange.getStartIndex(),
+                        globalThreadRowRange.getLength(), globalColCount,
+                        rowsPerBlock, hasWeightMatrix, factory);
+
+        int blockCount = streamingDistances.getBlockCount();
+        int blockValues = Math.min(rowsPerBlock,
+                globalThreadRowRange.getLength()) * globalColCount;
+        short[] blockDistances = new short[blockValues];
+        short[] blockWeights = hasWeightMatrix ? new short[blockValues] : null;
+        for (int block = 0; block < blockCount; ++block) {
+            int startRow = globalThreadRowRange.getStartIndex() +
+                    streamingDistances.getBlockStartRow(block);
+            Range rows = new Range(startRow, startRow +
+                    streamingDistances.getBlockRowCount(block) - 1);
+            readRowRange(config.distanceMatrixFile, rows, function,
+                    blockDistances);
+            if (hasWeightMatrix) {
+                readRowRange(config.weightMatrixFile, rows, weightFunction,
+                        blockWeights);
+            }
+            streamingDistances.writeBlock(block, blockDistances,
+                    blockWeights);
+        }
+        utils.printMessage("\nStaged distances to " + config.scratchDirectory +
+                " in " + blockCount + " blocks of " + rowsPerBlock + " rows");
+
+        distances = streamingDistances;
+        weights = createThreadWeights(factory, sw, weightFunction);
+    }
+
+    /**
+     * Reads the base matrix rows of a run with repetitions once and lets
+     * {@link RepeatedDistanceBlocks} map the repeated rows and columns onto
+     * them, instead of reading the repeated matrix into memory.
+     */
+    private void readRepeatedDistancesAndWeights(
+            boolean isSammon, TransformationFunction function) {
+        int baseCount = config.numberDataPoints / config.repetitions;
+        TransformationFunction weightFunction = loadWeightFunction();
+        double[] sw = readSimpleWeights();
+        simpleWeights = sw;
+        DistanceBlocks.WeightsFactory factory = createWeightsFactory(
+                isSammon, sw, weightFunction);
+
+        short[] baseDistances = readBaseRows(config.distanceMatrixFile,
+                baseCount, function);
+        short[] baseWeights = hasWeightMatrix()
+                ? readBaseRows(config.weightMatrixFile, baseCount,
+                weightFunction)
+                : null;
+        distances = new RepeatedDistanceBlocks(baseDistances, baseWeights,
+                baseCount, globalThreadRowRange.getStartIndex(),
+                globalThreadRowRange.getLength(), ParallelOps.globalColCount,
+                factory);
+        weights = createThreadWeights(factory, sw, weightFunction);
+    }
+
+    /**
+     * Reads the base rows of this thread's rows, which start at its first
+     * row modulo the base size and may wrap around to base row zero.
+     */
+    private short[] readBaseRows(
+            String fname, int baseCount, TransformationFunction function) {
+        int count = Math.min(globalThreadRowRange.getLength(), baseCount);
+        int startRow = globalThreadRowRange.getStartIndex() % baseCount;
+        int firstCount = Math.min(count, baseCount - startRow);
+        short[] values = new short[count * baseCount];
+        readRowRange(fname, new Range(startRow, startRow + firstCount - 1),
+                baseCount, 1, function, values);
+        if (firstCount < count) {
+            short[] wrapped = new short[(count - firstCount) * baseCount];
+            readRowRange(fname, new Range(0, count - firstCount - 1),
+                    baseCount, 1, function, wrapped);
+            System.arraycopy(wrapped, 0, values, firstCount * baseCount,
+                    wrapped.length);
+        }
+        return values;
+    }
+
+    private TransformationFunction loadDistanceFunction() {
+        if (!Strings.isNullOrEmpty(config.transformationFunction)) {
+            return loadFunction(config.transformationFunction);
+        }
+        return config.distanceTransform != 1.0
+                ? (d -> Math.pow(d, config.distanceTransform))
+                : null;
+    }
+
+    private boolean hasWeightMatrix() {
+        return !Strings.isNullOrEmpty(config.weightMatrixFile) &&
+                !config.isSimpleWeights;
+    }
+
+    private TransformationFunction loadWeightFunction() {
+        return !Strings.isNullOrEmpty(config.weightMatrixFile) && !Strings
+                .isNullOrEmpty(config.weightTransformationFunction)
+                ? loadFunction(config.weightTransformationFunction)
+                : null;
+    }
+
+    private double[] readSimpleWeights() {
+        return !Strings.isNullOrEmpty(config.weightMatrixFile) &&
+                config.isSimpleWeights
+                ? BinaryReader2D.readSimpleFile(config.weightMatrixFile,
+                config.numberDataPoints)
+                : null;
+    }
+
+    /**
+     * Sammon and full weight matrices depend on a block's values, so they
+     * are recreated with each block
+     *
+     * @return the factory, or null if the weights of all thread rows apply
+     */
+    private DistanceBlocks.WeightsFactory createWeightsFactory(
+            boolean isSammon, double[] sw,
+            TransformationFunction weightFunction) {
+        final int globalColCount = ParallelOps.globalColCount;
+        if (hasWeightMatrix()) {
+            return (w, d, rows) -> new WeightsWrap1D(
+                    w, d, isSammon, globalColCount);
+        } else if (isSammon && sw != null) {
+            return (w, d, rows) -> new WeightsWrap1D(
+                    sw, rows, d, true, globalColCount, weightFunction);
+        } else if (isSammon) {
+            return (w, d, rows) -> new WeightsWrap1D(
+                    null, d, true, globalColCount);
+        }
+        return null;
+    }
+
+    private WeightsWrap1D createThreadWeights(
+            DistanceBlocks.WeightsFactory factory, double[] sw,
+            TransformationFunction weightFunction) {
+        // Unit weights are never used for a row when blocks carry weights
+        return factory == null && sw != null
+                ? new WeightsWrap1D(sw, globalThreadRowRange, null, false,
+                ParallelOps.globalColCount, weightFunction)
+                : new WeightsWrap1D(null, null, false,
+                ParallelOps.globalColCount);
+    }
+
+    private void readRowRange(
+            String fname, Range rows, TransformationFunction function,
+            short[] values) {
+        readRowRange(fname, rows, ParallelOps.globalColCount,
+                config.repetitions, function, values);
+    }
+
+    private void readRowRange(
+            String fname, Range rows, int globalColCount, int repetitions,
+            TransformationFunction function, short[] values) {
+        if (config.isCompressed) {
+            BlockCompressedMatrixReader.readRowRange(fname, rows,
+                    globalColCount, true, function, repetitions, values);
+        } else if (repetitions == 1) {
+            BinaryReader1D.readRowRange(fname, rows, globalColCount,
+                    byteOrder, true, function, values);
+        } else {
+            BinaryReader1D.readRowRange(fname, rows, globalColCount,
+                    byteOrder, true, function, repetitions, values);
+        }
+    }
+
     private DoubleStatistics calculateStatisticsInternal(
-            short[] distances, WeightsWrap1D weights, RefObj<Integer>
+            DistanceBlocks distances, WeightsWrap1D weights, RefObj<Integer>
             refMissingDistCount) {
 
         int missingDistCount = 0;
         DoubleStatistics stat = new DoubleStatistics();
 
-        int threadRowCount = ParallelOps.threadRowCounts[threadId];
-
+        final int globalColCount = ParallelOps.globalColCount;
         double origD, weight;
-        for (int localRow = 0; localRow < threadRowCount; ++localRow) {
-            for (int globalCol = 0; globalCol < ParallelOps.globalColCount;
-                 globalCol++) {
-                origD = distances[localRow * ParallelOps.globalColCount +
-                        globalCol] * INV_SHORT_MAX;
-                weight = weights.getWeight(localRow, globalCol);
-//                weight = 1.0;
-                if (origD < 0) {
-                    // Missing distance
-                    ++missingDistCount;
-                    continue;
-                }
-                if (weight == 0) continue; // Ignore zero weights
+        for (int block = 0; block < distances.getBlockCount(); ++block) {
+            short[] blockDistances = distances.getDistances(block);
+            int blockStartRow = distances.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + distances.getBlockRowCount(block);
+            WeightsWrap1D blockWeights = distances.getWeights(block, weights);
+            int weightRowOffset = distances.getWeightRowOffset(block);
+            for (int localRow = blockStartRow; localRow < blockEndRow;
+                 ++localRow) {
+                int blockRowOffset = (localRow - blockStartRow) * globalColCount;
+                for (int globalCol = 0; globalCol < globalColCount;
+                     globalCol++) {
+                    origD = blockDistances[blockRowOffset + globalCol] *
+                            INV_SHORT_MAX;
+                    weight = blockWeights.getWeight(
+                            localRow - weightRowOffset, globalCol);
+                    if (origD < 0) {
+                        // Missing distance
+                        ++missingDistCount;
+                        continue;
+                    }
+                    if (weight == 0) continue; // Ignore zero weights
 
-                stat.accept(origD);
+                    stat.accept(origD);
+                }
             }
         }
         refMissingDistCount.setValue(missingDistCount);
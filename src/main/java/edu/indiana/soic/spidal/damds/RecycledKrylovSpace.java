@@ -0,0 +1,340 @@
+package edu.indiana.soic.spidal.damds;
+
+import mpi.MPIException;
+
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+
+/**
+ * A small basis of approximate eigenvectors of the constant matrix V - W
+ * for the smallest eigenvalues, carried from one CG solve to the next to
+ * deflate them. The basis vectors have one entry per point and apply to
+ * every dimension of the points, since the matrix acts on each dimension
+ * alike. Like the vectors of the row sliced CG, each thread keeps only its
+ * own rows of them, and every inner product is summed over the threads and
+ * processes holding the other rows, one reduction per step.
+ * <p>
+ * After each solve the basis is refined by Rayleigh-Ritz over itself and
+ * the first search directions of that solve, whose products with the
+ * matrix CG has already computed, so refining costs no extra MM.
+ */
+public class RecycledKrylovSpace {
+    // Directions whose Gram matrix eigenvalue falls below this share of
+    // its diagonal are dependent on the rest and are dropped
+    private static final double DEPENDENCE_TOLERANCE = 1e-12;
+
+    /**
+     * Sums arrays over the threads and processes that hold the other rows
+     */
+    public interface Reduction {
+        void sum(double[] values)
+                throws MPIException, BrokenBarrierException,
+                InterruptedException;
+    }
+
+    private final int size;
+    private final int rowCount;
+    private final int candidateCapacity;
+    private final Reduction reduction;
+
+    // Thread rows of the basis W and its product AW, and the inverse of the
+    // Ritz values, where W^T A W is diagonal since W is A orthogonal
+    private double[][] basis = new double[0][];
+    private double[][] basisProducts = new double[0][];
+    private double[] inverseRitzValues = new double[0];
+
+    private final double[][] candidates;
+    private final double[][] candidateProducts;
+    private int candidateCount = 0;
+
+    /**
+     * @param size number of vectors kept between solves
+     * @param rowCount number of thread rows of each vector
+     * @param reduction sums over the holders of the other rows
+     */
+    public RecycledKrylovSpace(int size, int rowCount, Reduction reduction) {
+        this.size = size;
+        this.rowCount = rowCount;
+        this.reduction = reduction;
+        candidateCapacity = 2 * size;
+        candidates = new double[candidateCapacity][rowCount];
+        candidateProducts = new double[candidateCapacity][rowCount];
+    }
+
+    /**
+     * Moves the part of the solution in the span of the basis to its exact
+     * value, x += W E^-1 W^T r, and updates r = b - Ax to match without
+     * another MM. The basis is A orthogonal, so the coefficients of all its
+     * vectors come from the same r.
+     *
+     * @param x thread rows of the solution
+     * @param r thread rows of the residual
+     */
+    public void deflateInitialGuess(double[] x, double[] r, int dimension)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        double[] mu = reduceDots(basis, r, dimension);
+        for (int v = 0; v < basis.length; ++v) {
+            for (int k = 0; k < dimension; ++k) {
+                double m = mu[v * dimension + k] * inverseRitzValues[v];
+                axpy(m, basis[v], x, k, dimension);
+                axpy(-m, basisProducts[v], r, k, dimension);
+            }
+        }
+    }
+
+    /**
+     * Removes the basis directions from a new search direction,
+     * p -= W E^-1 (AW)^T z, which keeps p A orthogonal to the basis.
+     *
+     * @param z thread rows of the preconditioned residual
+     * @param p thread rows of the search direction
+     */
+    public void project(double[] z, double[] p, int dimension)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        double[] mu = reduceDots(basisProducts, z, dimension);
+        for (int v = 0; v < basis.length; ++v) {
+            for (int k = 0; k < dimension; ++k) {
+                axpy(-mu[v * dimension + k] * inverseRitzValues[v], basis[v],
+                        p, k, dimension);
+            }
+        }
+    }
+
+    /**
+     * Keeps the columns of a search direction and its product with the
+     * matrix until there are enough candidates for the next refinement.
+     *
+     * @param p thread rows of the search direction
+     * @param Ap thread rows of its product
+     */
+    public void collect(double[] p, double[] Ap, int dimension) {
+        for (int k = 0; k < dimension && candidateCount < candidateCapacity;
+             ++k) {
+            double[] c = candidates[candidateCount];
+            double[] ac = candidateProducts[candidateCount];
+            for (int i = 0; i < rowCount; ++i) {
+                c[i] = p[i * dimension + k];
+                ac[i] = Ap[i * dimension + k];
+            }
+            ++candidateCount;
+        }
+    }
+
+    /**
+     * Rayleigh-Ritz over the basis and the collected candidates, keeping
+     * the vectors of the smallest Ritz values as the new basis. The Gram
+     * matrices Z^T Z and Z^T A Z of all these vectors Z are summed in one
+     * reduction, and the small generalized eigenproblem they pose is solved
+     * alike on every thread.
+     */
+    public void update()
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        if (candidateCount == 0) return;
+
+        int total = basis.length + candidateCount;
+        double[][] z = new double[total][];
+        double[][] az = new double[total][];
+        for (int i = 0; i < total; ++i) {
+            z[i] = i < basis.length ? basis[i] : candidates[i - basis.length];
+            az[i] = i < basis.length
+                    ? basisProducts[i]
+                    : candidateProducts[i - basis.length];
+        }
+        candidateCount = 0;
+
+        // Upper triangles of Z^T Z and Z^T A Z, the latter symmetrized to
+        // remove rounding in the products
+        double[] sums = new double[total * total * 2];
+        for (int i = 0; i < total; ++i) {
+            for (int j = i; j < total; ++j) {
+                sums[2 * (i * total + j)] = dot(z[i], z[j]);
+                sums[2 * (i * total + j) + 1] =
+                        0.5 * (dot(z[i], az[j]) + dot(z[j], az[i]));
+            }
+        }
+        reduction.sum(sums);
+
+        // Scale to a unit diagonal, then orthonormalize through the
+        // eigenvectors of the Gram matrix, dropping dependent directions
+        double[] scales = new double[total];
+        for (int i = 0; i < total; ++i) {
+            double norm = sums[2 * (i * total + i)];
+            scales[i] = norm > 0.0 ? 1.0 / Math.sqrt(norm) : 0.0;
+        }
+        double[][] gram = new double[total][total];
+        double[][] projected = new double[total][total];
+        for (int i = 0; i < total; ++i) {
+            for (int j = i; j < total; ++j) {
+                double scale = scales[i] * scales[j];
+                gram[i][j] = gram[j][i] = sums[2 * (i * total + j)] * scale;
+                projected[i][j] = projected[j][i] =
+                        sums[2 * (i * total + j) + 1] * scale;
+            }
+        }
+        double[][] u = new double[total][total];
+        double[] gramValues = symmetricEigen(gram, u);
+        int count = 0;
+        double[][] t = new double[total][total];
+        for (int e = 0; e < total; ++e) {
+            if (gramValues[e] <= DEPENDENCE_TOLERANCE) continue;
+            double inverseRoot = 1.0 / Math.sqrt(gramValues[e]);
+            for (int i = 0; i < total; ++i) {
+                t[i][count] = u[i][e] * inverseRoot;
+            }
+            ++count;
+        }
+        if (count == 0) return;
+
+        // Ritz values and vectors of T^T (Z^T A Z) T over the orthonormal
+        // directions ZT
+        double[][] h = new double[count][count];
+        for (int a = 0; a < count; ++a) {
+            for (int b = a; b < count; ++b) {
+                double sum = 0.0;
+                for (int i = 0; i < total; ++i) {
+                    for (int j = 0; j < total; ++j) {
+                        sum += t[i][a] * projected[i][j] * t[j][b];
+                    }
+                }
+                h[a][b] = h[b][a] = sum;
+            }
+        }
+        double[][] y = new double[count][count];
+        double[] ritzValues = symmetricEigen(h, y);
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; ++i) order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(ritzValues[a],
+                ritzValues[b]));
+
+        int kept = 0;
+        int newSize = Math.min(size, count);
+        double[][] newBasis = new double[newSize][];
+        double[][] newProducts = new double[newSize][];
+        double[] newInverse = new double[newSize];
+        for (int o = 0; o < count && kept < newSize; ++o) {
+            int e = order[o];
+            if (ritzValues[e] <= 0.0) continue;
+            double[] w = new double[rowCount];
+            double[] aw = new double[rowCount];
+            for (int i = 0; i < total; ++i) {
+                double c = 0.0;
+                for (int a = 0; a < count; ++a) {
+                    c += t[i][a] * y[a][e];
+                }
+                c *= scales[i];
+                axpy(c, z[i], w);
+                axpy(c, az[i], aw);
+            }
+            newBasis[kept] = w;
+            newProducts[kept] = aw;
+            newInverse[kept] = 1.0 / ritzValues[e];
+            ++kept;
+        }
+        basis = Arrays.copyOf(newBasis, kept);
+        basisProducts = Arrays.copyOf(newProducts, kept);
+        inverseRitzValues = Arrays.copyOf(newInverse, kept);
+    }
+
+    /**
+     * Cyclic Jacobi eigenvalue iteration for a small symmetric matrix
+     *
+     * @param a the matrix, overwritten
+     * @param vectors receives the eigenvectors as columns
+     * @return the eigenvalues
+     */
+    private static double[] symmetricEigen(double[][] a, double[][] vectors) {
+        int n = a.length;
+        for (int i = 0; i < n; ++i) {
+            Arrays.fill(vectors[i], 0.0);
+            vectors[i][i] = 1.0;
+        }
+        for (int sweep = 0; sweep < 100; ++sweep) {
+            double off = 0.0;
+            for (int p = 0; p < n; ++p) {
+                for (int q = p + 1; q < n; ++q) {
+                    off += a[p][q] * a[p][q];
+                }
+            }
+            if (off < 1e-30) break;
+            for (int p = 0; p < n; ++p) {
+                for (int q = p + 1; q < n; ++q) {
+                    if (a[p][q] == 0.0) continue;
+                    double theta = (a[q][q] - a[p][p]) / (2.0 * a[p][q]);
+                    double t = Math.signum(theta) /
+                            (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0.0) t = 1.0;
+                    double c = 1.0 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < n; ++k) {
+                        double akp = a[k][p];
+                        double akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; ++k) {
+                        double apk = a[p][k];
+                        double aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < n; ++k) {
+                        double vkp = vectors[k][p];
+                        double vkq = vectors[k][q];
+                        vectors[k][p] = c * vkp - s * vkq;
+                        vectors[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        double[] values = new double[n];
+        for (int i = 0; i < n; ++i) values[i] = a[i][i];
+        return values;
+    }
+
+    /**
+     * Inner products of each vector with each dimension of the thread rows
+     * x, summed over all rows
+     */
+    private double[] reduceDots(double[][] vectors, double[] x, int dimension)
+            throws MPIException, BrokenBarrierException, InterruptedException {
+        double[] dots = new double[vectors.length * dimension];
+        if (dots.length == 0) return dots;
+        for (int v = 0; v < vectors.length; ++v) {
+            for (int k = 0; k < dimension; ++k) {
+                dots[v * dimension + k] = dot(vectors[v], x, k, dimension);
+            }
+        }
+        reduction.sum(dots);
+        return dots;
+    }
+
+    private double dot(double[] w, double[] x, int k, int dimension) {
+        double sum = 0.0;
+        for (int i = 0; i < rowCount; ++i) {
+            sum += w[i] * x[i * dimension + k];
+        }
+        return sum;
+    }
+
+    private void axpy(
+            double alpha, double[] w, double[] x, int k, int dimension) {
+        for (int i = 0; i < rowCount; ++i) {
+            x[i * dimension + k] += alpha * w[i];
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; ++i) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static void axpy(double alpha, double[] a, double[] b) {
+        for (int i = 0; i < a.length; ++i) {
+            b[i] += alpha * a[i];
+        }
+    }
+}
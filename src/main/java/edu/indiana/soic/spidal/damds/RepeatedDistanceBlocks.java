@@ -0,0 +1,112 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+/**
+ * Distances of a matrix tiled <code>repetitions</code> times in each
+ * direction, stored only once. Global row <code>i</code> maps to base row
+ * <code>i mod baseCount</code>, and a block's rows are expanded into a tile
+ * of full width when the block is requested, so memory scales with the base
+ * matrix instead of with the repeated one.
+ */
+public class RepeatedDistanceBlocks extends DistanceBlocks {
+    // Upper bound of the reusable tile so that memory stays flat in N
+    private static final int TILE_BYTES = 1 << 23;
+
+    private final int baseCount;
+    private final int globalRowOffset;
+    private final short[] baseDistances;
+    private final short[] baseWeights;
+
+    private final short[] distanceTile;
+    private final short[] weightTile;
+    private int tileBlock = -1;
+    private WeightsWrap1D tileWeights;
+    private int tileWeightsBlock = -1;
+
+    /**
+     * @param baseDistances distances of the base rows starting at
+     *                      <code>globalRowOffset mod baseCount</code> and
+     *                      wrapping around, each of length baseCount
+     * @param baseWeights weights laid out like baseDistances, or null if
+     *                    there is no weight matrix
+     * @param baseCount size of the base matrix
+     * @param globalRowOffset the global row of the first thread row
+     * @param rowCount number of thread rows
+     * @param globalColCount size of the repeated matrix
+     * @param weightsFactory creates weights over a block, or null if the
+     *                       weights of all thread rows apply
+     */
+    public RepeatedDistanceBlocks(
+            short[] baseDistances, short[] baseWeights, int baseCount,
+            int globalRowOffset, int rowCount, int globalColCount,
+            WeightsFactory weightsFactory) {
+        super(rowCount, globalColCount,
+                TILE_BYTES / (Short.BYTES * Math.max(1, globalColCount)),
+                weightsFactory);
+        this.baseDistances = baseDistances;
+        this.baseWeights = baseWeights;
+        this.baseCount = baseCount;
+        this.globalRowOffset = globalRowOffset;
+
+        int tileValues = Math.min(rowsPerBlock, rowCount) * globalColCount;
+        distanceTile = new short[tileValues];
+        weightTile = baseWeights != null ? new short[tileValues] : null;
+    }
+
+    @Override
+    public short[] getDistances(int block) {
+        if (block != tileBlock) {
+            expand(block, baseDistances, distanceTile);
+            if (baseWeights != null) {
+                expand(block, baseWeights, weightTile);
+            }
+            tileBlock = block;
+        }
+        return distanceTile;
+    }
+
+    @Override
+    protected WeightsWrap1D getBlockWeights(
+            int block, WeightsWrap1D weights) {
+        if (tileWeightsBlock != block) {
+            tileWeights = createBlockWeights(block, weightTile,
+                    distanceTile, globalRowOffset);
+            tileWeightsBlock = block;
+        }
+        return tileWeights;
+    }
+
+    @Override
+    public void changeZeroDistancesToPositiveMin(double positiveMin) {
+        double tmpD;
+        for (int i = 0; i < baseDistances.length; ++i) {
+            tmpD = baseDistances[i] * (1.0 / Short.MAX_VALUE);
+            if (tmpD < positiveMin && tmpD >= 0.0) {
+                baseDistances[i] = (short) (positiveMin * Short.MAX_VALUE);
+            }
+        }
+        tileBlock = -1;
+    }
+
+    @Override
+    public short[] getResidentDistances() {
+        return null;
+    }
+
+    private void expand(int block, short[] base, short[] tile) {
+        int startRow = getBlockStartRow(block);
+        int count = getBlockRowCount(block);
+        for (int row = 0; row < count; ++row) {
+            // Base rows start at the thread's first row, so thread row r
+            // is base row r mod baseCount in this layout
+            int baseRow = (startRow + row) % baseCount;
+            int baseOffset = baseRow * baseCount;
+            int tileOffset = row * globalColCount;
+            for (int col = 0; col < globalColCount; col += baseCount) {
+                System.arraycopy(base, baseOffset, tile, tileOffset + col,
+                        Math.min(baseCount, globalColCount - col));
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+/**
+ * Distances held in memory as a single block, which keeps the kernels'
+ * inner loops identical to indexing the array directly.
+ */
+public class ResidentDistanceBlocks extends DistanceBlocks {
+    private final short[] distances;
+
+    public ResidentDistanceBlocks(
+            short[] distances, int rowCount, int globalColCount) {
+        super(rowCount, globalColCount, rowCount);
+        this.distances = distances;
+    }
+
+    @Override
+    public short[] getDistances(int block) {
+        return distances;
+    }
+
+    @Override
+    public void changeZeroDistancesToPositiveMin(double positiveMin) {
+        double tmpD;
+        for (int i = 0; i < distances.length; ++i) {
+            tmpD = distances[i] * (1.0 / Short.MAX_VALUE);
+            if (tmpD < positiveMin && tmpD >= 0.0) {
+                distances[i] = (short) (positiveMin * Short.MAX_VALUE);
+            }
+        }
+    }
+
+    @Override
+    public short[] getResidentDistances() {
+        return distances;
+    }
+
+    @Override
+    protected WeightsWrap1D getBlockWeights(
+            int block, WeightsWrap1D weights) {
+        // The single block spans all thread rows
+        return weights;
+    }
+}
@@ -0,0 +1,161 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+import java.util.Random;
+
+import static edu.indiana.soic.spidal.damds.DistanceRows.INV_SHORT_MAX;
+import static edu.indiana.soic.spidal.damds.DistanceRows.calculateEuclideanDist;
+
+/**
+ * Estimates a thread's unnormalized stress from a fixed stratified sample
+ * of pairs, chosen once per run. The columns are split into equal strata
+ * and each thread row samples one column of every stratum, weighted by the
+ * stratum's size, so the estimate of each row is unbiased.
+ * <p>
+ * Two estimates at different points share the sample, so their difference
+ * has much less noise than either. Its variance is estimated from the
+ * spread of the paired differences within each row, treating the strata
+ * as a simple random sample, which overstates it.
+ */
+public class SampledStress {
+    private final int rowCount;
+    private final int samplesPerRow;
+    private final int globalRowOffset;
+    private final int[] columns;
+    private final short[] distances;
+    // Pair weight times the stratum size
+    private final double[] scaledWeights;
+
+    private double[] terms;
+    private double[] previousTerms;
+
+    private SampledStress(
+            int rowCount, int samplesPerRow, int globalRowOffset,
+            int[] columns, short[] distances, double[] scaledWeights) {
+        this.rowCount = rowCount;
+        this.samplesPerRow = samplesPerRow;
+        this.globalRowOffset = globalRowOffset;
+        this.columns = columns;
+        this.distances = distances;
+        this.scaledWeights = scaledWeights;
+        terms = new double[columns.length];
+        previousTerms = new double[columns.length];
+    }
+
+    /**
+     * Samples the given blocks, prepared as {@link DistanceRows} requires.
+     *
+     * @param blocks the distances of the thread rows
+     * @param weights the weights of all thread rows
+     * @param globalRowOffset the global row of the first thread row
+     * @param samplesPerRow number of strata of each row
+     * @param seed seed of the sample, the same on every thread
+     * @return the sample
+     */
+    public static SampledStress build(
+            DistanceBlocks blocks, WeightsWrap1D weights, int globalRowOffset,
+            int samplesPerRow, long seed) {
+        final int rowCount = blocks.getRowCount();
+        final int globalColCount = ParallelOps.globalColCount;
+        samplesPerRow = Math.min(samplesPerRow, globalColCount);
+
+        int[] columns = new int[rowCount * samplesPerRow];
+        short[] distances = new short[columns.length];
+        double[] scaledWeights = new double[columns.length];
+        for (int block = 0; block < blocks.getBlockCount(); ++block) {
+            short[] blockDistances = blocks.getDistances(block);
+            WeightsWrap1D blockWeights = blocks.getWeights(block, weights);
+            int weightRowOffset = blocks.getWeightRowOffset(block);
+            int blockStartRow = blocks.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + blocks.getBlockRowCount(block);
+            for (int row = blockStartRow; row < blockEndRow; ++row) {
+                // Each row has its own stream, so the sample doesn't depend
+                // on how rows are split over threads
+                Random random = new Random(seed + row + globalRowOffset);
+                int blockRowOffset = (row - blockStartRow) * globalColCount;
+                for (int s = 0; s < samplesPerRow; ++s) {
+                    int start = (int) ((long) s * globalColCount /
+                            samplesPerRow);
+                    int end = (int) ((long) (s + 1) * globalColCount /
+                            samplesPerRow);
+                    int col = start + random.nextInt(end - start);
+                    int k = row * samplesPerRow + s;
+                    columns[k] = col;
+                    distances[k] = blockDistances[blockRowOffset + col];
+                    scaledWeights[k] = distances[k] < 0
+                            ? 0.0
+                            : (end - start) * blockWeights.getWeight(
+                                    row - weightRowOffset, col);
+                }
+            }
+        }
+        return new SampledStress(rowCount, samplesPerRow, globalRowOffset,
+                columns, distances, scaledWeights);
+    }
+
+    /**
+     * Evaluates the sample at the given points and keeps the last
+     * evaluation to pair with the next one.
+     *
+     * @return the thread's estimated stress, the estimated decrease from
+     * the last evaluation and the variance of that decrease, all
+     * unnormalized
+     */
+    public double[] evaluate(double[] preX, int targetDimension, double tCur) {
+        double diff = 0.0;
+        if (tCur > 10E-10) {
+            diff = Math.sqrt(2.0 * targetDimension) * tCur;
+        }
+
+        double[] swap = previousTerms;
+        previousTerms = terms;
+        terms = swap;
+
+        double sigma = 0.0;
+        double decrease = 0.0;
+        double variance = 0.0;
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            int start = row * samplesPerRow;
+            double rowDecrease = 0.0;
+            for (int k = start; k < start + samplesPerRow; ++k) {
+                double origD = distances[k] * INV_SHORT_MAX;
+                int col = columns[k];
+                double euclideanD = globalRow != col
+                        ? calculateEuclideanDist(preX, globalRow, col,
+                        targetDimension)
+                        : 0.0;
+                double tmpD = origD >= diff
+                        ? origD - diff - euclideanD
+                        : -euclideanD;
+                terms[k] = scaledWeights[k] * tmpD * tmpD;
+                sigma += terms[k];
+                rowDecrease += previousTerms[k] - terms[k];
+            }
+            decrease += rowDecrease;
+
+            if (samplesPerRow > 1) {
+                double mean = rowDecrease / samplesPerRow;
+                double sumOfSquares = 0.0;
+                for (int k = start; k < start + samplesPerRow; ++k) {
+                    double e = previousTerms[k] - terms[k] - mean;
+                    sumOfSquares += e * e;
+                }
+                variance += samplesPerRow * sumOfSquares /
+                        (samplesPerRow - 1);
+            }
+        }
+        return new double[]{sigma, decrease, variance};
+    }
+
+    /**
+     * Drops the last evaluation, for when its points are discarded, so the
+     * next one pairs with the evaluation before it.
+     */
+    public void discardLast() {
+        double[] swap = previousTerms;
+        previousTerms = terms;
+        terms = swap;
+    }
+}
@@ -0,0 +1,396 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+import java.util.Arrays;
+
+import static edu.indiana.soic.spidal.damds.DistanceRows.INV_SHORT_MAX;
+import static edu.indiana.soic.spidal.damds.DistanceRows.calculateEuclideanDist;
+
+/**
+ * A thread's rows of distances and weights in compressed sparse row form,
+ * keeping only pairs with a known distance and a non zero weight. The
+ * kernels here visit only those pairs, so memory and time per iteration
+ * scale with the number of known pairs instead of rows times N.
+ * <p>
+ * Rows may also be sorted by descending distance. Pairs with a distance
+ * at or below the current temperature's shift have a zero BofZ entry, so
+ * the BofZ kernel then stops at the first such pair of each row, which at
+ * high temperatures skips most of every row.
+ */
+public class SparseDistances {
+    private final int rowCount;
+    private final int globalRowOffset;
+    private final int[] rowStarts;
+    private final int[] columns;
+    private final short[] distances;
+    // Null when every weight is one
+    private final double[] weights;
+    private final boolean isSortedByDistance;
+    // When every pair is known and w_ij = s_i * s_j, stress of the pairs a
+    // sorted row skips is summed in closed form from these
+    private boolean isRankOne;
+    private double[] rankOneWeights;
+
+    private SparseDistances(
+            int rowCount, int globalRowOffset, int[] rowStarts,
+            int[] columns, short[] distances, double[] weights,
+            boolean isSortedByDistance) {
+        this.rowCount = rowCount;
+        this.globalRowOffset = globalRowOffset;
+        this.rowStarts = rowStarts;
+        this.columns = columns;
+        this.distances = distances;
+        this.weights = weights;
+        this.isSortedByDistance = isSortedByDistance;
+    }
+
+    /**
+     * Compresses the given blocks, prepared as {@link DistanceRows}
+     * requires.
+     *
+     * @param blocks the dense distances
+     * @param weights the weights of all thread rows
+     * @param globalRowOffset the global row of the first thread row
+     * @param sortByDistance whether to sort each row by descending distance
+     * @return the compressed distances and weights
+     */
+    public static SparseDistances build(
+            DistanceBlocks blocks, WeightsWrap1D weights,
+            int globalRowOffset, boolean sortByDistance) {
+        return build(blocks, weights, globalRowOffset, sortByDistance, null);
+    }
+
+    /**
+     * Compresses only the pairs among the given points, leaving the rows of
+     * the other points empty.
+     *
+     * @param keepPoints the global points to keep, or null for all
+     */
+    public static SparseDistances build(
+            DistanceBlocks blocks, WeightsWrap1D weights,
+            int globalRowOffset, boolean sortByDistance,
+            boolean[] keepPoints) {
+        final int rowCount = blocks.getRowCount();
+        final int globalColCount = ParallelOps.globalColCount;
+
+        // First pass counts the pairs of each row
+        int[] rowStarts = new int[rowCount + 1];
+        boolean isUnitWeights = true;
+        for (int block = 0; block < blocks.getBlockCount(); ++block) {
+            short[] blockDistances = blocks.getDistances(block);
+            WeightsWrap1D blockWeights = blocks.getWeights(block, weights);
+            int weightRowOffset = blocks.getWeightRowOffset(block);
+            int blockStartRow = blocks.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + blocks.getBlockRowCount(block);
+            for (int row = blockStartRow; row < blockEndRow; ++row) {
+                int blockRowOffset = (row - blockStartRow) * globalColCount;
+                int count = 0;
+                for (int col = 0; col < globalColCount; ++col) {
+                    if (blockDistances[blockRowOffset + col] < 0) continue;
+                    if (!isKept(keepPoints, row + globalRowOffset, col)) {
+                        continue;
+                    }
+                    double weight = blockWeights.getWeight(
+                            row - weightRowOffset, col);
+                    if (weight == 0) continue;
+                    if (weight != 1.0) isUnitWeights = false;
+                    ++count;
+                }
+                rowStarts[row + 1] = rowStarts[row] + count;
+            }
+        }
+
+        int nnz = rowStarts[rowCount];
+        int[] columns = new int[nnz];
+        short[] distances = new short[nnz];
+        double[] values = isUnitWeights ? null : new double[nnz];
+        for (int block = 0; block < blocks.getBlockCount(); ++block) {
+            short[] blockDistances = blocks.getDistances(block);
+            WeightsWrap1D blockWeights = blocks.getWeights(block, weights);
+            int weightRowOffset = blocks.getWeightRowOffset(block);
+            int blockStartRow = blocks.getBlockStartRow(block);
+            int blockEndRow = blockStartRow + blocks.getBlockRowCount(block);
+            for (int row = blockStartRow; row < blockEndRow; ++row) {
+                int blockRowOffset = (row - blockStartRow) * globalColCount;
+                int k = rowStarts[row];
+                for (int col = 0; col < globalColCount; ++col) {
+                    short d = blockDistances[blockRowOffset + col];
+                    if (d < 0) continue;
+                    if (!isKept(keepPoints, row + globalRowOffset, col)) {
+                        continue;
+                    }
+                    double weight = blockWeights.getWeight(
+                            row - weightRowOffset, col);
+                    if (weight == 0) continue;
+                    columns[k] = col;
+                    distances[k] = d;
+                    if (values != null) {
+                        values[k] = weight;
+                    }
+                    ++k;
+                }
+            }
+        }
+        if (sortByDistance) {
+            sortRows(rowStarts, columns, distances, values);
+        }
+        return new SparseDistances(rowCount, globalRowOffset, rowStarts,
+                columns, distances, values, sortByDistance);
+    }
+
+    private static boolean isKept(boolean[] keepPoints, int row, int col) {
+        return keepPoints == null || (keepPoints[row] && keepPoints[col]);
+    }
+
+    /**
+     * Sorts the pairs of each row by descending distance, ties keeping
+     * column order
+     */
+    private static void sortRows(
+            int[] rowStarts, int[] columns, short[] distances,
+            double[] values) {
+        int maxRowLength = 0;
+        for (int row = 0; row + 1 < rowStarts.length; ++row) {
+            maxRowLength = Math.max(maxRowLength,
+                    rowStarts[row + 1] - rowStarts[row]);
+        }
+        long[] keys = new long[maxRowLength];
+        int[] rowColumns = new int[maxRowLength];
+        short[] rowDistances = new short[maxRowLength];
+        double[] rowValues = values != null ? new double[maxRowLength] : null;
+        for (int row = 0; row + 1 < rowStarts.length; ++row) {
+            int start = rowStarts[row];
+            int length = rowStarts[row + 1] - start;
+            System.arraycopy(columns, start, rowColumns, 0, length);
+            System.arraycopy(distances, start, rowDistances, 0, length);
+            if (values != null) {
+                System.arraycopy(values, start, rowValues, 0, length);
+            }
+            // Larger distances get smaller keys, and the low bits keep the
+            // position in the row
+            for (int k = 0; k < length; ++k) {
+                keys[k] = ((long) (Short.MAX_VALUE - rowDistances[k]) << 32)
+                        | k;
+            }
+            Arrays.sort(keys, 0, length);
+            for (int k = 0; k < length; ++k) {
+                int position = (int) keys[k];
+                columns[start + k] = rowColumns[position];
+                distances[start + k] = rowDistances[position];
+                if (values != null) {
+                    values[start + k] = rowValues[position];
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the stress kernel that every pair is known and weighted as
+     * w_ij = s_i * s_j, so the stress of pairs a sorted row skips can be
+     * summed in closed form.
+     *
+     * @param simpleWeights s of every point, or null for unit weights
+     */
+    public void setRankOneWeights(double[] simpleWeights) {
+        isRankOne = true;
+        rankOneWeights = simpleWeights;
+    }
+
+    public long getPairCount() {
+        return rowStarts[rowCount];
+    }
+
+    /**
+     * Same as summing the non missing weights of each row plus one
+     *
+     * @param v the output diagonal of V
+     */
+    public void generateV(double[] v) {
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            double sum = 1;
+            for (int k = rowStarts[row]; k < rowStarts[row + 1]; ++k) {
+                if (columns[k] == globalRow) continue;
+                sum += weights == null ? 1.0 : weights[k];
+            }
+            v[row] = sum;
+        }
+    }
+
+    /**
+     * Computes BofZ times X without forming BofZ, where the diagonal of
+     * BofZ is the negated sum of the row's off diagonal entries.
+     *
+     * @param preX current points
+     * @param targetDimension point dimension
+     * @param tCur current temperature
+     * @param outMM row major thread rows of BofZ times preX
+     * @param skipRows rows to leave untouched, or null to compute all
+     */
+    public void multiplyBofZ(
+            double[] preX, int targetDimension, double tCur, double[] outMM,
+            boolean[] skipRows) {
+        double diff = 0.0;
+        if (tCur > 10E-10) {
+            diff = Math.sqrt(2.0 * targetDimension) * tCur;
+        }
+
+        double[] sum = new double[targetDimension];
+        for (int row = 0; row < rowCount; ++row) {
+            if (skipRows != null && skipRows[row]) continue;
+            int globalRow = row + globalRowOffset;
+            int rowOffset = globalRow * targetDimension;
+            Arrays.fill(sum, 0.0);
+            double diagonal = 0.0;
+            for (int k = rowStarts[row]; k < rowStarts[row + 1]; ++k) {
+                int col = columns[k];
+                double origD = distances[k] * INV_SHORT_MAX;
+                // The rest of a sorted row is no further than diff
+                if (isSortedByDistance && origD <= diff) break;
+                if (col == globalRow) continue;
+
+                double dist = calculateEuclideanDist(preX, globalRow, col,
+                        targetDimension);
+                if (dist < 1.0E-10 || diff >= origD) continue;
+
+                double weight = weights == null ? 1.0 : weights[k];
+                double b = -weight * (origD - diff) / dist;
+                diagonal -= b;
+                int colOffset = col * targetDimension;
+                for (int i = 0; i < targetDimension; ++i) {
+                    sum[i] += b * preX[colOffset + i];
+                }
+            }
+            int outOffset = row * targetDimension;
+            for (int i = 0; i < targetDimension; ++i) {
+                outMM[outOffset + i] =
+                        sum[i] + diagonal * preX[rowOffset + i];
+            }
+        }
+    }
+
+    /**
+     * Computes (V - W) times x for the thread rows
+     *
+     * @param x points to multiply
+     * @param targetDimension point dimension
+     * @param v diagonal of V
+     * @param outMM row major thread rows of the product
+     */
+    public void multiplyV(
+            double[] x, int targetDimension, double[] v, double[] outMM) {
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            int outOffset = row * targetDimension;
+            int rowOffset = globalRow * targetDimension;
+            for (int i = 0; i < targetDimension; ++i) {
+                outMM[outOffset + i] = v[row] * x[rowOffset + i];
+            }
+            for (int k = rowStarts[row]; k < rowStarts[row + 1]; ++k) {
+                int col = columns[k];
+                if (col == globalRow) continue;
+                double weight = weights == null ? 1.0 : weights[k];
+                int colOffset = col * targetDimension;
+                for (int i = 0; i < targetDimension; ++i) {
+                    outMM[outOffset + i] -= weight * x[colOffset + i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of squared differences over the known pairs
+     *
+     * @param preX current points
+     * @param targetDimension point dimension
+     * @param tCur current temperature
+     * @return the thread's unnormalized stress
+     */
+    public double calculateStress(
+            double[] preX, int targetDimension, double tCur) {
+        double diff = 0.0;
+        if (tCur > 10E-10) {
+            diff = Math.sqrt(2.0 * targetDimension) * tCur;
+        }
+
+        if (isSortedByDistance && isRankOne) {
+            return calculateRankOneStress(preX, targetDimension, diff);
+        }
+
+        double sigma = 0.0;
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            for (int k = rowStarts[row]; k < rowStarts[row + 1]; ++k) {
+                int col = columns[k];
+                double origD = distances[k] * INV_SHORT_MAX;
+                double euclideanD = globalRow != col
+                        ? calculateEuclideanDist(preX, globalRow, col,
+                        targetDimension)
+                        : 0.0;
+                double tmpD = origD >= diff
+                        ? origD - diff - euclideanD
+                        : -euclideanD;
+                double weight = weights == null ? 1.0 : weights[k];
+                sigma += weight * tmpD * tmpD;
+            }
+        }
+        return sigma;
+    }
+
+    /**
+     * Stress over sorted rows, visiting only pairs farther than diff. A
+     * skipped pair contributes w_ij d_ij(X)^2, so the row's total is
+     * sum_j w_ij d_ij(X)^2 over all j, which for w_ij = s_i * s_j is
+     * s_i (S |x_i|^2 - 2 x_i . sum_j s_j x_j + sum_j s_j |x_j|^2), plus
+     * for each visited pair (delta_ij - diff - d_ij)^2 - d_ij^2.
+     */
+    private double calculateRankOneStress(
+            double[] preX, int targetDimension, double diff) {
+        final int numPoints = preX.length / targetDimension;
+        double sumS = 0.0;
+        double sumSNorm = 0.0;
+        double[] sumSX = new double[targetDimension];
+        for (int j = 0; j < numPoints; ++j) {
+            double sj = rankOneWeights == null ? 1.0 : rankOneWeights[j];
+            double norm = 0.0;
+            for (int k = 0; k < targetDimension; ++k) {
+                double x = preX[j * targetDimension + k];
+                sumSX[k] += sj * x;
+                norm += x * x;
+            }
+            sumS += sj;
+            sumSNorm += sj * norm;
+        }
+
+        double sigma = 0.0;
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            int rowOffset = globalRow * targetDimension;
+            double norm = 0.0;
+            double dot = 0.0;
+            for (int k = 0; k < targetDimension; ++k) {
+                double x = preX[rowOffset + k];
+                norm += x * x;
+                dot += x * sumSX[k];
+            }
+            double si = rankOneWeights == null ? 1.0 :
+                    rankOneWeights[globalRow];
+            double rowSigma = si * (sumS * norm - 2.0 * dot + sumSNorm);
+            for (int k = rowStarts[row]; k < rowStarts[row + 1]; ++k) {
+                double origD = distances[k] * INV_SHORT_MAX;
+                if (origD < diff) break;
+                int col = columns[k];
+                double euclideanD = globalRow != col
+                        ? calculateEuclideanDist(preX, globalRow, col,
+                        targetDimension)
+                        : 0.0;
+                double tmpD = origD - diff - euclideanD;
+                double weight = weights == null ? 1.0 : weights[k];
+                rowSigma += weight * (tmpD * tmpD - euclideanD * euclideanD);
+            }
+            sigma += rowSigma;
+        }
+        return sigma;
+    }
+}
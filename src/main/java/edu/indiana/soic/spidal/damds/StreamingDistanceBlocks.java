@@ -0,0 +1,278 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Distances, and optionally weights, staged to a local scratch file and
+ * streamed back one row block at a time. While the kernels work on a block
+ * the next one is read asynchronously into a second buffer, so a pass over
+ * all blocks only waits on the disk when reading is slower than computing.
+ * Read and wait times are recorded per block to tell which is the case.
+ * The file passes through one small direct buffer that is decoded into the
+ * two blocks, so a thread holds little more than two blocks.
+ */
+public class StreamingDistanceBlocks extends DistanceBlocks {
+    private static final double SHORT_MAX = Short.MAX_VALUE;
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    private final boolean hasWeights;
+    private final int globalRowOffset;
+    private final long blockBytes;
+
+    // Stages file reads and writes, one at a time
+    private final ByteBuffer chunk;
+    // Double buffers, where index current holds the block being computed on
+    private final short[][] distanceBuffers = new short[2][];
+    private final short[][] weightBuffers = new short[2][];
+    private final WeightsWrap1D[] blockWeights = new WeightsWrap1D[2];
+    private final int[] blockWeightsBlock = {-1, -1};
+    private int current = 0;
+    private int currentBlock = -1;
+
+    private final ExecutorService reader;
+    private Future<?> pending;
+    private int pendingBlock = -1;
+
+    private short positiveMin = 0;
+
+    private final long[] readNanos;
+    private final long[] waitNanos;
+    private final int[] readCounts;
+
+    public StreamingDistanceBlocks(
+            String scratchDirectory, String name, int globalRowOffset,
+            int rowCount, int globalColCount, int rowsPerBlock,
+            boolean hasWeights, WeightsFactory weightsFactory) {
+        super(rowCount, globalColCount, rowsPerBlock, weightsFactory);
+        this.globalRowOffset = globalRowOffset;
+        this.hasWeights = hasWeights;
+
+        int values = this.rowsPerBlock * globalColCount;
+        blockBytes = (long) values * Short.BYTES * (hasWeights ? 2 : 1);
+        chunk = ByteBuffer.allocateDirect(
+                (int) Math.min(CHUNK_BYTES, blockBytes))
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 2; ++i) {
+            distanceBuffers[i] = new short[values];
+            weightBuffers[i] = hasWeights ? new short[values] : null;
+        }
+
+        file = new File(scratchDirectory, name);
+        file.deleteOnExit();
+        try {
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    "Failed to create scratch file " + file, e);
+        }
+
+        reader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "damds-reader-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+
+        int blockCount = getBlockCount();
+        readNanos = new long[blockCount];
+        waitNanos = new long[blockCount];
+        readCounts = new int[blockCount];
+    }
+
+    /**
+     * Stages a block to the scratch file. Blocks must be written before
+     * they are first requested.
+     *
+     * @param block the block index
+     * @param distances row major distances of the block
+     * @param weights row major weights of the block, or null if weights are
+     *                not streamed
+     */
+    public void writeBlock(int block, short[] distances, short[] weights) {
+        awaitPending();
+        int values = getBlockRowCount(block) * globalColCount;
+        int count = values * (hasWeights ? 2 : 1);
+        long position = block * blockBytes;
+        try {
+            // Weights follow the distances of the block in the file
+            for (int done = 0; done < count; ) {
+                int n = Math.min(chunk.capacity() / Short.BYTES,
+                        count - done);
+                int d = Math.max(0, Math.min(n, values - done));
+                chunk.clear();
+                ShortBuffer shorts = chunk.asShortBuffer();
+                if (d > 0) {
+                    shorts.put(distances, done, d);
+                }
+                if (n > d) {
+                    shorts.put(weights, done + d - values, n - d);
+                }
+                chunk.limit(n * Short.BYTES);
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                done += n;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    "Failed to write scratch file " + file, e);
+        }
+        currentBlock = -1;
+    }
+
+    @Override
+    public short[] getDistances(int block) {
+        if (block == currentBlock) {
+            return distanceBuffers[current];
+        }
+
+        int next = 1 - current;
+        if (block == pendingBlock) {
+            long t = System.nanoTime();
+            awaitPending();
+            waitNanos[block] += System.nanoTime() - t;
+        } else {
+            awaitPending();
+            long t = System.nanoTime();
+            read(block, next);
+            waitNanos[block] += System.nanoTime() - t;
+        }
+        current = next;
+        currentBlock = block;
+
+        // Passes always walk the blocks in order, so the next pass starts
+        // with block zero
+        int nextBlock = (block + 1) % getBlockCount();
+        if (nextBlock != block) {
+            final int target = 1 - current;
+            pendingBlock = nextBlock;
+            pending = reader.submit(() -> read(nextBlock, target));
+        }
+        return distanceBuffers[current];
+    }
+
+    @Override
+    protected WeightsWrap1D getBlockWeights(
+            int block, WeightsWrap1D weights) {
+        if (blockWeightsBlock[current] != block) {
+            blockWeights[current] = createBlockWeights(block,
+                    weightBuffers[current], distanceBuffers[current],
+                    globalRowOffset);
+            blockWeightsBlock[current] = block;
+        }
+        return blockWeights[current];
+    }
+
+    @Override
+    public void changeZeroDistancesToPositiveMin(double positiveMin) {
+        this.positiveMin = (short) (positiveMin * SHORT_MAX);
+        // Buffered blocks were read with the old floor
+        awaitPending();
+        currentBlock = -1;
+        pendingBlock = -1;
+    }
+
+    @Override
+    public short[] getResidentDistances() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        awaitPending();
+        reader.shutdown();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+
+    public long[] getReadNanos() {
+        return readNanos;
+    }
+
+    public long[] getWaitNanos() {
+        return waitNanos;
+    }
+
+    public int[] getReadCounts() {
+        return readCounts;
+    }
+
+    private void awaitPending() {
+        if (pending == null) return;
+        try {
+            pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(
+                    "Failed to read scratch file " + file, e);
+        } finally {
+            pending = null;
+            pendingBlock = -1;
+        }
+    }
+
+    private void read(int block, int target) {
+        long t = System.nanoTime();
+        int values = getBlockRowCount(block) * globalColCount;
+        int count = values * (hasWeights ? 2 : 1);
+        short[] distances = distanceBuffers[target];
+        short[] weights = weightBuffers[target];
+        long position = block * blockBytes;
+        try {
+            for (int done = 0; done < count; ) {
+                int n = Math.min(chunk.capacity() / Short.BYTES,
+                        count - done);
+                int d = Math.max(0, Math.min(n, values - done));
+                chunk.clear().limit(n * Short.BYTES);
+                while (chunk.hasRemaining()) {
+                    int read = channel.read(chunk, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    position += read;
+                }
+                chunk.flip();
+                ShortBuffer shorts = chunk.asShortBuffer();
+                if (d > 0) {
+                    shorts.get(distances, done, d);
+                }
+                if (n > d) {
+                    shorts.get(weights, done + d - values, n - d);
+                }
+                done += n;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    "Failed to read scratch file " + file, e);
+        }
+        if (positiveMin > 0) {
+            short s;
+            for (int i = 0; i < values; ++i) {
+                s = distances[i];
+                if (s >= 0 && s < positiveMin) {
+                    distances[i] = positiveMin;
+                }
+            }
+        }
+        readNanos[block] += System.nanoTime() - t;
+        ++readCounts[block];
+    }
+}
@@ -0,0 +1,121 @@
+package edu.indiana.soic.spidal.damds;
+
+import edu.indiana.soic.spidal.common.TransformationFunction;
+import edu.indiana.soic.spidal.common.WeightsWrap1D;
+
+/**
+ * Distances computed tile by tile from feature vectors instead of being read
+ * from a distance matrix file. Raw metric values are scaled by the global
+ * maximum distance, optionally transformed, and quantized to shorts exactly
+ * like distances read from a file, so the kernels are unchanged.
+ */
+public class VectorDistanceBlocks extends DistanceBlocks {
+    // Upper bound of the reusable tile so that memory stays flat in N
+    private static final int TILE_BYTES = 1 << 23;
+    private static final double SHORT_MAX = Short.MAX_VALUE;
+
+    private final double[] vectors;
+    private final int dimension;
+    private final DistanceMetric metric;
+    private final int globalRowOffset;
+    private final TransformationFunction function;
+    private final short[] tile;
+
+    private double scale = 1.0;
+    private short positiveMin = 0;
+
+    public VectorDistanceBlocks(
+            double[] vectors, int dimension, DistanceMetric metric,
+            int globalRowOffset, int rowCount, int globalColCount,
+            TransformationFunction function) {
+        super(rowCount, globalColCount,
+                TILE_BYTES / (Short.BYTES * Math.max(1, globalColCount)));
+        this.vectors = vectors;
+        this.dimension = dimension;
+        this.metric = metric;
+        this.globalRowOffset = globalRowOffset;
+        this.function = function;
+        tile = new short[Math.min(rowsPerBlock, rowCount) * globalColCount];
+    }
+
+    /**
+     * Largest raw distance between this thread's rows and all points
+     *
+     * @return the maximum raw metric value
+     */
+    public double calculateMaxDistance() {
+        double max = 0.0;
+        for (int row = 0; row < rowCount; ++row) {
+            int globalRow = row + globalRowOffset;
+            for (int globalCol = 0; globalCol < globalColCount; ++globalCol) {
+                double d = metric.distance(vectors, globalRow, globalCol,
+                        dimension);
+                if (d > max) max = d;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Sets the value mapped to a distance of one
+     *
+     * @param maxDistance the global maximum raw distance
+     */
+    public void setMaxDistance(double maxDistance) {
+        scale = maxDistance > 0.0 ? 1.0 / maxDistance : 1.0;
+    }
+
+    @Override
+    public short[] getDistances(int block) {
+        fill(getBlockStartRow(block), getBlockRowCount(block), tile);
+        return tile;
+    }
+
+    @Override
+    public void changeZeroDistancesToPositiveMin(double positiveMin) {
+        this.positiveMin = (short) (positiveMin * SHORT_MAX);
+    }
+
+    @Override
+    public short[] getResidentDistances() {
+        return null;
+    }
+
+    @Override
+    protected WeightsWrap1D getBlockWeights(
+            int block, WeightsWrap1D weights) {
+        // Tiles carry no weights of their own, so the weights of all thread
+        // rows apply
+        return weights;
+    }
+
+    /**
+     * Computes all of this thread's distances at once, which trades memory
+     * for not recomputing them in every pass.
+     *
+     * @return row major distances of all thread rows
+     */
+    public short[] materialize() {
+        short[] distances = new short[rowCount * globalColCount];
+        fill(0, rowCount, distances);
+        return distances;
+    }
+
+    private void fill(int startRow, int count, short[] out) {
+        for (int row = 0; row < count; ++row) {
+            int globalRow = row + startRow + globalRowOffset;
+            int offset = row * globalColCount;
+            for (int globalCol = 0; globalCol < globalColCount; ++globalCol) {
+                double d = metric.distance(vectors, globalRow, globalCol,
+                        dimension) * scale;
+                if (function != null) {
+                    d = function.transform(d);
+                }
+                short s = (short) (d * SHORT_MAX);
+                out[offset + globalCol] = s >= 0 && s < positiveMin
+                        ? positiveMin
+                        : s;
+            }
+        }
+    }
+}
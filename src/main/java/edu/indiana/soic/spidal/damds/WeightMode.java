@@ -0,0 +1,32 @@
+package edu.indiana.soic.spidal.damds;
+
+/**
+ * How weights are formed, chosen once at startup so that the kernels can
+ * use a loop specialized for it instead of calling
+ * <code>WeightsWrap1D.getWeight</code> for every pair.
+ */
+public enum WeightMode {
+    /**
+     * No weight file and no Sammon scaling, so every weight is one
+     */
+    UNIT,
+    /**
+     * Simple weights without a transformation, where
+     * <code>w_ij = w_i * w_j</code>
+     */
+    SIMPLE,
+    /**
+     * A weight matrix held in memory without Sammon scaling
+     */
+    FULL,
+    /**
+     * Sammon scaling of unit weights, <code>w_ij = 1 / delta_ij</code>
+     * with delta bounded below by a fraction of the average distance
+     */
+    SAMMON,
+    /**
+     * Any other combination, which goes through
+     * <code>WeightsWrap1D.getWeight</code>
+     */
+    GENERIC
+}
@@ -0,0 +1,200 @@
+package edu.indiana.soic.spidal.damds.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * On disk layout of a block compressed short matrix.
+ *
+ * <pre>
+ * magic         8 bytes  "DAMDSBCM"
+ * version       int
+ * rowCount      int
+ * colCount      int
+ * rowsPerBlock  int
+ * blockCount    int
+ * blockOffsets  long[blockCount + 1] absolute file offsets, the last entry
+ *               is the end of the final block
+ * blocks        rowsPerBlock rows each (the last may be shorter)
+ * </pre>
+ *
+ * Each row is split into frames of {@link #FRAME_SIZE} columns. A frame
+ * starts with a one byte header and a two byte seed. If the top bit of the
+ * header is set the frame is delta coded, i.e. the seed is the first value
+ * and the remaining values are zigzag encoded differences. Otherwise the
+ * seed is the frame minimum and every value is stored as its offset from
+ * it. The low five bits of the header give the bit width used to pack the
+ * values. All header fields are big endian.
+ */
+public class BlockCompressedMatrix {
+    public static final byte[] MAGIC =
+            "DAMDSBCM".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    public static final int FRAME_SIZE = 128;
+    public static final int DEFAULT_ROWS_PER_BLOCK = 16;
+
+    static final int FIXED_HEADER_BYTES = MAGIC.length + 5 * Integer.BYTES;
+
+    private static final int DELTA_FLAG = 0x80;
+    private static final int WIDTH_MASK = 0x1F;
+
+    // Upper bound of an encoded frame, i.e. header, seed, and 17 bit values
+    static final int MAX_FRAME_BYTES = 3 + (FRAME_SIZE * 17 + 7) / 8;
+
+    private BlockCompressedMatrix() {
+    }
+
+    static long indexOffset() {
+        return FIXED_HEADER_BYTES;
+    }
+
+    static long dataOffset(int blockCount) {
+        return FIXED_HEADER_BYTES + (blockCount + 1L) * Long.BYTES;
+    }
+
+    static int blockCount(int rowCount, int rowsPerBlock) {
+        return (rowCount + rowsPerBlock - 1) / rowsPerBlock;
+    }
+
+    /**
+     * Encodes one row
+     *
+     * @param row source values
+     * @param offset start of the row in <code>row</code>
+     * @param length number of columns
+     * @param scratch working space of at least {@link #FRAME_SIZE} ints
+     * @param out destination buffer
+     * @param pos position in <code>out</code> to start writing
+     * @return the position in <code>out</code> after the encoded row
+     */
+    static int encodeRow(
+            short[] row, int offset, int length, int[] scratch, byte[] out,
+            int pos) {
+        for (int start = 0; start < length; start += FRAME_SIZE) {
+            int count = Math.min(FRAME_SIZE, length - start);
+            int from = offset + start;
+
+            int min = row[from], max = row[from];
+            int maxZigzag = 0;
+            for (int i = 1; i < count; ++i) {
+                int val = row[from + i];
+                if (val < min) min = val;
+                if (val > max) max = val;
+                int zigzag = zigzag(val - row[from + i - 1]);
+                if (zigzag > maxZigzag) maxZigzag = zigzag;
+            }
+            int forWidth = bitsNeeded(max - min);
+            int deltaWidth = bitsNeeded(maxZigzag);
+
+            if (deltaWidth < forWidth) {
+                out[pos++] = (byte) (DELTA_FLAG | deltaWidth);
+                pos = writeShort(row[from], out, pos);
+                for (int i = 1; i < count; ++i) {
+                    scratch[i - 1] = zigzag(row[from + i] - row[from + i - 1]);
+                }
+                pos = pack(scratch, count - 1, deltaWidth, out, pos);
+            } else {
+                out[pos++] = (byte) forWidth;
+                pos = writeShort((short) min, out, pos);
+                for (int i = 0; i < count; ++i) {
+                    scratch[i] = row[from + i] - min;
+                }
+                pos = pack(scratch, count, forWidth, out, pos);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes one row written by {@link #encodeRow}
+     *
+     * @param in stream positioned at the start of the row
+     * @param length number of columns
+     * @param frame working space of at least {@link #MAX_FRAME_BYTES}
+     * @param out destination, or null to skip the row
+     * @param offset position in <code>out</code> of the first column
+     * @throws IOException if the stream ends prematurely
+     */
+    static void decodeRow(
+            DataInputStream in, int length, byte[] frame, short[] out,
+            int offset) throws IOException {
+        for (int start = 0; start < length; start += FRAME_SIZE) {
+            int count = Math.min(FRAME_SIZE, length - start);
+            int header = in.readUnsignedByte();
+            short seed = in.readShort();
+            boolean isDelta = (header & DELTA_FLAG) != 0;
+            int width = header & WIDTH_MASK;
+            int packedCount = isDelta ? count - 1 : count;
+            int packedBytes = (packedCount * width + 7) / 8;
+            in.readFully(frame, 0, packedBytes);
+            if (out == null) continue;
+
+            int to = offset + start;
+            if (isDelta) {
+                int prev = seed;
+                out[to] = seed;
+                long acc = 0;
+                int bits = 0, pos = 0;
+                for (int i = 1; i < count; ++i) {
+                    while (bits < width) {
+                        acc |= (frame[pos++] & 0xFFL) << bits;
+                        bits += 8;
+                    }
+                    int zigzag = (int) (acc & ((1L << width) - 1));
+                    acc >>>= width;
+                    bits -= width;
+                    prev += (zigzag >>> 1) ^ -(zigzag & 1);
+                    out[to + i] = (short) prev;
+                }
+            } else {
+                long acc = 0;
+                int bits = 0, pos = 0;
+                for (int i = 0; i < count; ++i) {
+                    while (bits < width) {
+                        acc |= (frame[pos++] & 0xFFL) << bits;
+                        bits += 8;
+                    }
+                    out[to + i] = (short) (seed +
+                            (int) (acc & ((1L << width) - 1)));
+                    acc >>>= width;
+                    bits -= width;
+                }
+            }
+        }
+    }
+
+    private static int pack(
+            int[] vals, int count, int width, byte[] out, int pos) {
+        if (width == 0) return pos;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < count; ++i) {
+            acc |= ((long) vals[i]) << bits;
+            bits += width;
+            while (bits >= 8) {
+                out[pos++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0) {
+            out[pos++] = (byte) acc;
+        }
+        return pos;
+    }
+
+    private static int writeShort(short val, byte[] out, int pos) {
+        out[pos++] = (byte) (val >>> 8);
+        out[pos++] = (byte) val;
+        return pos;
+    }
+
+    private static int zigzag(int val) {
+        return (val << 1) ^ (val >> 31);
+    }
+
+    private static int bitsNeeded(int val) {
+        return 32 - Integer.numberOfLeadingZeros(val);
+    }
+}
@@ -0,0 +1,213 @@
+package edu.indiana.soic.spidal.damds.io;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Converts a raw row major short matrix, as read by
+ * <code>BinaryReader1D</code>, into a {@link BlockCompressedMatrix} file.
+ * Blocks are compressed in parallel and written in order.
+ */
+public class BlockCompressedMatrixConverter {
+    private static final String PROGRAM_NAME = "BlockCompressedMatrixConverter";
+
+    private static final String CMD_OPTION_IN = "in";
+    private static final String CMD_OPTION_OUT = "out";
+    private static final String CMD_OPTION_ROWS = "rows";
+    private static final String CMD_OPTION_COLS = "cols";
+    private static final String CMD_OPTION_BIG_ENDIAN = "bigendian";
+    private static final String CMD_OPTION_ROWS_PER_BLOCK = "rowsperblock";
+
+    private static Options programOptions = new Options();
+
+    static {
+        programOptions.addOption(CMD_OPTION_IN, true,
+                "Raw short matrix file");
+        programOptions.addOption(CMD_OPTION_OUT, true,
+                "Block compressed output file");
+        programOptions.addOption(CMD_OPTION_ROWS, true, "Number of rows");
+        programOptions.addOption(CMD_OPTION_COLS, true,
+                "Number of columns (defaults to rows)");
+        programOptions.addOption(CMD_OPTION_BIG_ENDIAN, true,
+                "Is the raw file big endian (boolean)");
+        programOptions.addOption(CMD_OPTION_ROWS_PER_BLOCK, true,
+                "Rows per compressed block");
+    }
+
+    public static void main(String[] args) {
+        Optional<CommandLine> parserResult =
+                parseCommandLineArguments(args, programOptions);
+        if (!parserResult.isPresent()) {
+            new HelpFormatter().printHelp(PROGRAM_NAME, programOptions);
+            return;
+        }
+        CommandLine cmd = parserResult.get();
+        if (!(cmd.hasOption(CMD_OPTION_IN) && cmd.hasOption(CMD_OPTION_OUT)
+              && cmd.hasOption(CMD_OPTION_ROWS))) {
+            new HelpFormatter().printHelp(PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        int rows = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_ROWS));
+        int cols = cmd.hasOption(CMD_OPTION_COLS)
+                ? Integer.parseInt(cmd.getOptionValue(CMD_OPTION_COLS))
+                : rows;
+        ByteOrder byteOrder = cmd.hasOption(CMD_OPTION_BIG_ENDIAN) &&
+                Boolean.parseBoolean(cmd.getOptionValue(CMD_OPTION_BIG_ENDIAN))
+                ? ByteOrder.BIG_ENDIAN
+                : ByteOrder.LITTLE_ENDIAN;
+        int rowsPerBlock = cmd.hasOption(CMD_OPTION_ROWS_PER_BLOCK)
+                ? Integer.parseInt(cmd.getOptionValue(CMD_OPTION_ROWS_PER_BLOCK))
+                : BlockCompressedMatrix.DEFAULT_ROWS_PER_BLOCK;
+
+        Stopwatch timer = Stopwatch.createStarted();
+        try {
+            long compressedBytes = convert(cmd.getOptionValue(CMD_OPTION_IN),
+                    cmd.getOptionValue(CMD_OPTION_OUT), rows, cols, byteOrder,
+                    rowsPerBlock);
+            timer.stop();
+            long rawBytes = (long) rows * cols * Short.BYTES;
+            System.out.println(String.format(
+                    "Compressed %d bytes to %d bytes (ratio %.3g) in %d ms",
+                    rawBytes, compressedBytes,
+                    rawBytes * 1.0 / compressedBytes,
+                    timer.elapsed(TimeUnit.MILLISECONDS)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts a raw short matrix to the block compressed format
+     *
+     * @param inFile the raw matrix
+     * @param outFile the compressed matrix to create
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param byteOrder endianness of the raw matrix
+     * @param rowsPerBlock rows in each independently addressable block
+     * @return the size of the compressed file in bytes
+     * @throws IOException if reading or writing fails
+     */
+    public static long convert(
+            String inFile, String outFile, int rows, int cols,
+            ByteOrder byteOrder, int rowsPerBlock) throws IOException {
+        int blockCount = BlockCompressedMatrix.blockCount(rows, rowsPerBlock);
+        long[] blockOffsets = new long[blockCount + 1];
+        // Compress one batch of blocks per worker at a time to bound memory
+        int batchSize = Runtime.getRuntime().availableProcessors();
+
+        try (FileChannel in = FileChannel.open(Paths.get(inFile),
+                StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get(outFile),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long expectedBytes = (long) rows * cols * Short.BYTES;
+            if (in.size() != expectedBytes) {
+                throw new IOException(
+                        "Expected " + expectedBytes + " bytes in " + inFile +
+                        " but found " + in.size());
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(
+                    BlockCompressedMatrix.FIXED_HEADER_BYTES);
+            header.put(BlockCompressedMatrix.MAGIC);
+            header.putInt(BlockCompressedMatrix.VERSION);
+            header.putInt(rows);
+            header.putInt(cols);
+            header.putInt(rowsPerBlock);
+            header.putInt(blockCount);
+            header.flip();
+            writeFully(out, header, 0);
+
+            long position = BlockCompressedMatrix.dataOffset(blockCount);
+            for (int first = 0; first < blockCount; first += batchSize) {
+                final int batchStart = first;
+                byte[][] compressed = IntStream.range(
+                        first, Math.min(blockCount, first + batchSize))
+                        .parallel()
+                        .mapToObj(block -> compressBlock(in, block,
+                                rowsPerBlock, rows, cols, byteOrder))
+                        .toArray(byte[][]::new);
+                for (int i = 0; i < compressed.length; ++i) {
+                    blockOffsets[batchStart + i] = position;
+                    writeFully(out, ByteBuffer.wrap(compressed[i]), position);
+                    position += compressed[i].length;
+                }
+            }
+            blockOffsets[blockCount] = position;
+
+            ByteBuffer index = ByteBuffer.allocate(
+                    blockOffsets.length * Long.BYTES);
+            index.asLongBuffer().put(blockOffsets);
+            writeFully(out, index, BlockCompressedMatrix.indexOffset());
+            return position;
+        }
+    }
+
+    private static byte[] compressBlock(
+            FileChannel in, int block, int rowsPerBlock, int rows, int cols,
+            ByteOrder byteOrder) {
+        int startRow = block * rowsPerBlock;
+        int rowCount = Math.min(rowsPerBlock, rows - startRow);
+        ByteBuffer raw = ByteBuffer.allocate(cols * Short.BYTES);
+        raw.order(byteOrder);
+        short[] row = new short[cols];
+        int[] scratch = new int[BlockCompressedMatrix.FRAME_SIZE];
+        int frames = (cols + BlockCompressedMatrix.FRAME_SIZE - 1)
+                / BlockCompressedMatrix.FRAME_SIZE;
+        byte[] out = new byte[rowCount * frames
+                * BlockCompressedMatrix.MAX_FRAME_BYTES];
+        int pos = 0;
+        try {
+            for (int r = 0; r < rowCount; ++r) {
+                raw.clear();
+                long offset = (startRow + r) * (long) cols * Short.BYTES;
+                while (raw.hasRemaining()) {
+                    if (in.read(raw, offset + raw.position()) < 0) {
+                        throw new IOException("Unexpected end of raw matrix");
+                    }
+                }
+                raw.flip();
+                raw.asShortBuffer().get(row);
+                pos = BlockCompressedMatrix.encodeRow(row, 0, cols, scratch,
+                        out, pos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] trimmed = new byte[pos];
+        System.arraycopy(out, 0, trimmed, 0, pos);
+        return trimmed;
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer buffer,
+                                   long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            fc.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static Optional<CommandLine> parseCommandLineArguments(
+            String[] args, Options opts) {
+
+        CommandLineParser optParser = new GnuParser();
+
+        try {
+            return Optional.fromNullable(optParser.parse(opts, args));
+        } catch (ParseException e) {
+            e.printStackTrace();
+        }
+        return Optional.fromNullable(null);
+    }
+}
@@ -0,0 +1,168 @@
+package edu.indiana.soic.spidal.damds.io;
+
+import edu.indiana.soic.spidal.common.Range;
+import edu.indiana.soic.spidal.common.TransformationFunction;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads row ranges of a {@link BlockCompressedMatrix} file. Only the blocks
+ * overlapping the requested rows are read, so each caller seeks straight to
+ * its rows. Calls are independent, hence threads reading their own row
+ * ranges decompress in parallel.
+ */
+public class BlockCompressedMatrixReader {
+    private static final double INV_SHORT_MAX = 1.0 / Short.MAX_VALUE;
+    private static final int STREAM_BUFFER_BYTES = 1 << 16;
+
+    private final int rowCount;
+    private final int colCount;
+    private final int rowsPerBlock;
+    private final long[] blockOffsets;
+
+    private BlockCompressedMatrixReader(
+            int rowCount, int colCount, int rowsPerBlock, long[] blockOffsets) {
+        this.rowCount = rowCount;
+        this.colCount = colCount;
+        this.rowsPerBlock = rowsPerBlock;
+        this.blockOffsets = blockOffsets;
+    }
+
+    public static void readRowRange(
+            String fname, Range rows, int globalColCount,
+            boolean divideByShortMax, TransformationFunction function,
+            short[] values) {
+        readRowRange(fname, rows, globalColCount, divideByShortMax, function,
+                1, values);
+    }
+
+    /**
+     * Reads a range of rows into a row major array
+     *
+     * @param fname the block compressed matrix file
+     * @param rows global rows to read
+     * @param globalColCount columns of the (possibly repeated) matrix
+     * @param divideByShortMax whether the transformation function expects
+     *                         values scaled to [0, 1]
+     * @param function optional transformation applied to every value
+     * @param repetitions how many times the stored matrix is tiled in each
+     *                    direction
+     * @param values destination with room for rows x globalColCount values
+     */
+    public static void readRowRange(
+            String fname, Range rows, int globalColCount,
+            boolean divideByShortMax, TransformationFunction function,
+            int repetitions, short[] values) {
+        try (FileChannel fc = FileChannel.open(Paths.get(fname),
+                StandardOpenOption.READ)) {
+            BlockCompressedMatrixReader reader = readHeader(fc);
+            if (reader.colCount * repetitions != globalColCount) {
+                throw new RuntimeException(
+                        "Compressed matrix " + fname + " has " +
+                        reader.colCount + " columns, but " + globalColCount +
+                        " were expected with " + repetitions +
+                        " repetitions");
+            }
+            reader.read(fc, rows, repetitions, values);
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    "Failed to read compressed matrix " + fname, e);
+        }
+
+        if (function != null) {
+            int count = rows.getLength() * globalColCount;
+            for (int i = 0; i < count; ++i) {
+                double val = divideByShortMax
+                        ? values[i] * INV_SHORT_MAX
+                        : values[i];
+                val = function.transform(val);
+                values[i] = (short) (divideByShortMax
+                        ? val * Short.MAX_VALUE
+                        : val);
+            }
+        }
+    }
+
+    private static BlockCompressedMatrixReader readHeader(FileChannel fc)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(
+                BlockCompressedMatrix.FIXED_HEADER_BYTES);
+        readFully(fc, header, 0);
+        byte[] magic = new byte[BlockCompressedMatrix.MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, BlockCompressedMatrix.MAGIC)) {
+            throw new IOException("Not a block compressed matrix file");
+        }
+        int version = header.getInt();
+        if (version != BlockCompressedMatrix.VERSION) {
+            throw new IOException(
+                    "Unsupported compressed matrix version " + version);
+        }
+        int rowCount = header.getInt();
+        int colCount = header.getInt();
+        int rowsPerBlock = header.getInt();
+        int blockCount = header.getInt();
+
+        ByteBuffer index = ByteBuffer.allocate(
+                (blockCount + 1) * Long.BYTES);
+        readFully(fc, index, BlockCompressedMatrix.indexOffset());
+        long[] blockOffsets = new long[blockCount + 1];
+        index.asLongBuffer().get(blockOffsets);
+        return new BlockCompressedMatrixReader(rowCount, colCount,
+                rowsPerBlock, blockOffsets);
+    }
+
+    private void read(
+            FileChannel fc, Range rows, int repetitions, short[] values)
+            throws IOException {
+        byte[] frame = new byte[BlockCompressedMatrix.MAX_FRAME_BYTES];
+        int globalColCount = colCount * repetitions;
+
+        DataInputStream in = null;
+        int nextRow = -1; // next stored row the stream is positioned at
+        int localRow = 0;
+        for (int row = rows.getStartIndex(); row <= rows.getEndIndex();
+             ++row, ++localRow) {
+            int storedRow = row % rowCount;
+            int block = storedRow / rowsPerBlock;
+            if (in == null || storedRow < nextRow ||
+                block != nextRow / rowsPerBlock) {
+                fc.position(blockOffsets[block]);
+                in = new DataInputStream(new BufferedInputStream(
+                        Channels.newInputStream(fc), STREAM_BUFFER_BYTES));
+                nextRow = block * rowsPerBlock;
+            }
+            while (nextRow < storedRow) {
+                BlockCompressedMatrix.decodeRow(in, colCount, frame, null, 0);
+                ++nextRow;
+            }
+
+            int offset = localRow * globalColCount;
+            BlockCompressedMatrix.decodeRow(in, colCount, frame, values,
+                    offset);
+            ++nextRow;
+            for (int r = 1; r < repetitions; ++r) {
+                System.arraycopy(values, offset, values,
+                        offset + r * colCount, colCount);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of compressed matrix");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,53 @@
+package edu.indiana.soic.spidal.damds.io;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads feature vectors stored as a binary row major matrix of doubles.
+ */
+public class VectorFileReader {
+    // Map at most this many bytes at a time
+    private static final long MAP_BYTES = 1L << 30;
+
+    /**
+     * Reads all vectors
+     *
+     * @param fname the vector file
+     * @param count number of vectors
+     * @param dimension length of each vector
+     * @param byteOrder endianness of the file
+     * @return row major vectors
+     */
+    public static double[] read(
+            String fname, int count, int dimension, ByteOrder byteOrder) {
+        double[] vectors = new double[count * dimension];
+        long expectedBytes = (long) vectors.length * Double.BYTES;
+        try (FileChannel fc = FileChannel.open(Paths.get(fname),
+                StandardOpenOption.READ)) {
+            if (fc.size() < expectedBytes) {
+                throw new IOException(
+                        "Expected " + expectedBytes + " bytes in " + fname +
+                        " but found " + fc.size());
+            }
+            long rowBytes = (long) dimension * Double.BYTES;
+            long rowsPerMap = Math.max(1, MAP_BYTES / rowBytes);
+            for (long row = 0; row < count; row += rowsPerMap) {
+                long rows = Math.min(rowsPerMap, count - row);
+                DoubleBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY,
+                        row * rowBytes, rows * rowBytes).order(byteOrder)
+                        .asDoubleBuffer();
+                buffer.get(vectors, (int) (row * dimension),
+                        (int) (rows * dimension));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    "Failed to read vector file " + fname, e);
+        }
+        return vectors;
+    }
+}
@@ -16,6 +16,9 @@ public class ThreadCommunicator {
     private int[] intBuffer;
     private double[] doubleBuffer;
     private double[] pointsBuffer;
+    // Arrays of each thread being summed, and of the thread being copied
+    private double[][] arrayBuffer;
+    private double[] rootArray;
     private double[] timingBuffer;
     private DoubleStatistics[] doubleStatisticsBuffer;
     private CyclicBarrier barrier;
@@ -35,6 +38,7 @@ public class ThreadCommunicator {
         intBuffer = new int[threadCount];
         doubleBuffer = new double[threadCount];
         pointsBuffer = new double[numberDataPoints*targetDimension];
+        arrayBuffer = new double[threadCount][];
         timingBuffer = new double[threadCount];
         doubleStatisticsBuffer = new DoubleStatistics[threadCount];
         for (int i = 0; i < threadCount; ++i){
@@ -97,6 +101,41 @@ public class ThreadCommunicator {
         }
     }
 
+    /**
+     * Sums equal length arrays over threads into the array of thread 0.
+     * The other arrays must not change until the next call on this
+     * communicator.
+     */
+    public void sumDoubleArrayOverThreads(int threadIdx, double[] val)
+        throws BrokenBarrierException, InterruptedException {
+        arrayBuffer[threadIdx] = val;
+        barrier.await();
+        if (threadIdx == 0) {
+            for (int i = 1; i < threadCount; ++i) {
+                double[] other = arrayBuffer[i];
+                for (int j = 0; j < val.length; ++j) {
+                    val[j] += other[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the array of the root thread into the equal length arrays of
+     * the others
+     */
+    public void copyDoubleArrayFromThread(int threadIdx, double[] val, int root)
+        throws BrokenBarrierException, InterruptedException {
+        if (threadIdx == root) {
+            rootArray = val;
+        }
+        barrier.await();
+        if (threadIdx != root) {
+            System.arraycopy(rootArray, 0, val, 0, val.length);
+        }
+        barrier.await();
+    }
+
     public void sumDoubleStatisticsOverThreads(int threadIdx, DoubleStatistics val)
         throws BrokenBarrierException, InterruptedException {
         sumCountDoubleStats.compareAndSet(threadCount, 0);
@@ -190,7 +229,7 @@ public class ThreadCommunicator {
         while (bcastCounter.get() != threadCount) {
             ;
         }
-        System.arraycopy(pointsBuffer, 0, preX, 0, pointsBuffer.length);
+        System.arraycopy(pointsBuffer, 0, preX, 0, preX.length);
     }
 
     public synchronized void collect(